@@ -0,0 +1,203 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Lock words of the atomic blocks of a program. An atomic block touches
+ * the shared globals it reads or writes, directly or in the functions it
+ * (indirectly) calls; globals that only one thread uses need no lock.
+ * Globals touched by exactly the same atomic blocks form a conflict set,
+ * which gets one lock word, so two blocks share a lock word only if they
+ * touch a common global. A block takes the words of all its conflict sets
+ * in increasing address order, the same order for every block, so that no
+ * two blocks can wait for each other. Accesses outside atomic blocks are
+ * not protected. Like SharedGlobals, the analysis goes by name.
+ * @author tim, martijn
+ *
+ */
+public class AtomicTable extends GrammarBaseListener {
+
+	/**
+	 * Name of the context holding the top level statements.
+	 */
+	private static final String TOP_LEVEL = "";
+
+	private final SharedGlobals sharedGlobals;
+	private final CallGraph callGraph;
+
+	/**
+	 * Names of all declared global variables.
+	 */
+	private final Set<String> globals = new HashSet<>();
+
+	/**
+	 * Variables accessed directly per function, the top level included.
+	 */
+	private final Map<String, Set<String>> accesses = new HashMap<>();
+
+	/**
+	 * Variables accessed and functions called directly per atomic block.
+	 */
+	private final ParseTreeProperty<Set<String>> names = new ParseTreeProperty<>();
+	private final ParseTreeProperty<Set<String>> calls = new ParseTreeProperty<>();
+
+	/**
+	 * Addresses of the lock words per atomic block, in increasing order.
+	 */
+	private final ParseTreeProperty<List<Integer>> locks = new ParseTreeProperty<>();
+	private final List<AtomicStatContext> blocks = new ArrayList<>();
+
+	private final Deque<String> functions = new ArrayDeque<>();
+	private AtomicStatContext current;
+	private int end;
+
+	public AtomicTable(SharedGlobals sharedGlobals, CallGraph callGraph) {
+		this.sharedGlobals = sharedGlobals;
+		this.callGraph = callGraph;
+	}
+
+	/**
+	 * Allocates the lock words of the atomic blocks of the given program.
+	 * @param tree program to analyse
+	 * @param start first free word of shared memory
+	 */
+	public void analyse(ParseTree tree, int start) {
+		end = start;
+		functions.push(TOP_LEVEL);
+		new ParseTreeWalker().walk(this, tree);
+
+		// the blocks touching each shared global, in order of first use
+		Map<String, Set<Integer>> users = new LinkedHashMap<>();
+		List<Set<String>> touched = new ArrayList<>();
+		for (int i = 0; i < blocks.size(); i++) {
+			touched.add(touched(blocks.get(i)));
+			for (String id : touched.get(i)) {
+				users.computeIfAbsent(id, k -> new HashSet<>()).add(i);
+			}
+		}
+		Map<Set<Integer>, Integer> words = new HashMap<>();
+		for (Set<Integer> user : users.values()) {
+			if (!words.containsKey(user)) {
+				words.put(user, end++);
+			}
+		}
+		for (int i = 0; i < blocks.size(); i++) {
+			Set<Integer> addresses = new TreeSet<>();
+			for (String id : touched.get(i)) {
+				addresses.add(words.get(users.get(id)));
+			}
+			locks.put(blocks.get(i), new ArrayList<>(addresses));
+		}
+	}
+
+	/**
+	 * Returns the addresses of the lock words of the given atomic block, in
+	 * the order in which they are taken.
+	 */
+	public List<Integer> getLocks(AtomicStatContext block) {
+		return locks.get(block);
+	}
+
+	/**
+	 * Returns the first word after the lock words.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the shared globals the given block may touch, sorted by name.
+	 */
+	private Set<String> touched(AtomicStatContext block) {
+		Set<String> used = new HashSet<>(names.get(block));
+		for (String callee : calls.get(block)) {
+			for (FuncStatContext function : callGraph.getFunctions()) {
+				String name = function.ID(0).getText();
+				if (callGraph.reaches(callee, name)) {
+					used.addAll(accesses.getOrDefault(name, new HashSet<>()));
+				}
+			}
+		}
+		Set<String> result = new TreeSet<>();
+		for (String id : used) {
+			if (globals.contains(id) && sharedGlobals.isShared(id)) {
+				result.add(id);
+			}
+		}
+		return result;
+	}
+
+	private void access(String id) {
+		accesses.computeIfAbsent(functions.peek(), k -> new HashSet<>()).add(id);
+		if (current != null) {
+			names.get(current).add(id);
+		}
+	}
+
+	@Override
+	public void enterFuncStat(FuncStatContext ctx) {
+		functions.push(ctx.ID(0).getText());
+	}
+
+	@Override
+	public void exitFuncStat(FuncStatContext ctx) {
+		functions.pop();
+	}
+
+	@Override
+	public void enterAtomicStat(AtomicStatContext ctx) {
+		if (current == null) {
+			current = ctx;
+			blocks.add(ctx);
+			names.put(ctx, new HashSet<>());
+			calls.put(ctx, new HashSet<>());
+		}
+	}
+
+	@Override
+	public void exitAtomicStat(AtomicStatContext ctx) {
+		if (current == ctx) {
+			current = null;
+		}
+	}
+
+	@Override
+	public void enterDeclStat(DeclStatContext ctx) {
+		if (ctx.GLOBAL() != null) {
+			globals.add(ctx.ID().getText());
+			access(ctx.ID().getText());
+		}
+	}
+
+	@Override
+	public void enterAssStat(AssStatContext ctx) {
+		access(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterIdExpr(IdExprContext ctx) {
+		access(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterFuncCall(FuncCallContext ctx) {
+		if (current != null) {
+			calls.get(current).add(ctx.ID().getText());
+		}
+	}
+}
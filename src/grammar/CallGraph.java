@@ -0,0 +1,234 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Call graph of the functions of a program. Used by the generator to emit
+ * every function once, to find the functions that run as a thread, to
+ * find the leaf functions, which call no other function and start no
+ * thread or parfor statement, to find the calls that may reenter
+ * the calling function and to decide which calls to inline. The size of a
+ * function is estimated as one instruction per statement and expression,
+ * plus the instructions of a call sequence per call.
+ * @author tim, martijn
+ *
+ */
+public class CallGraph extends GrammarBaseListener {
+
+	/**
+	 * Function the main thread calls after the top level statements.
+	 */
+	private static final String MAIN = "main";
+
+	/**
+	 * Estimated instructions of a call: saving the return address, the
+	 * jump, the return and restoring a register.
+	 */
+	private static final int CALL_SIZE = 6;
+
+	/**
+	 * All function declarations, in the order of the program.
+	 */
+	private final List<FuncStatContext> functions = new ArrayList<>();
+
+	/**
+	 * Functions called directly per function.
+	 */
+	private final Map<String, Set<String>> calls = new HashMap<>();
+
+	/**
+	 * Functions that call a function or start a thread.
+	 */
+	private final Set<String> nonLeaves = new HashSet<>();
+
+	/**
+	 * Estimated number of instructions per function.
+	 */
+	private final Map<String, Integer> sizes = new HashMap<>();
+
+	/**
+	 * Number of calls per function, counting the call of main.
+	 */
+	private final Map<String, Integer> callSites = new HashMap<>();
+
+	/**
+	 * All run statements, in the order of the program.
+	 */
+	private final List<RunStatContext> runs = new ArrayList<>();
+
+	/**
+	 * Functions that contain a run or parfor statement.
+	 */
+	private final Set<String> starters = new HashSet<>();
+
+	private final Deque<String> current = new ArrayDeque<>();
+
+	/**
+	 * Analyses the given program.
+	 * @param tree program to analyse
+	 */
+	public void analyse(ParseTree tree) {
+		new ParseTreeWalker().walk(this, tree);
+	}
+
+	/**
+	 * Returns all function declarations, in the order of the program.
+	 */
+	public List<FuncStatContext> getFunctions() {
+		return functions;
+	}
+
+	/**
+	 * Whether a function with the given name is declared.
+	 */
+	public boolean hasFunction(String name) {
+		return calls.containsKey(name);
+	}
+
+	/**
+	 * Returns all run statements, in the order of the program.
+	 */
+	public List<RunStatContext> getRuns() {
+		return runs;
+	}
+
+	/**
+	 * Whether a run statement starts a thread executing the given function.
+	 */
+	public boolean isThread(String name) {
+		for (RunStatContext run : runs) {
+			if (run.ID(1).getText().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a call of the given function may, directly or indirectly,
+	 * start a thread.
+	 */
+	public boolean startsThreads(String name) {
+		for (String starter : starters) {
+			if (reaches(name, starter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the given function calls no other function and starts no
+	 * thread.
+	 */
+	public boolean isLeaf(String name) {
+		return !nonLeaves.contains(name);
+	}
+
+	/**
+	 * Returns the estimated number of instructions of the given function.
+	 */
+	public int getSize(String name) {
+		return sizes.getOrDefault(name, 0);
+	}
+
+	/**
+	 * Returns the number of places the given function is called from. The
+	 * main function is called once by the main thread.
+	 */
+	public int getCallSites(String name) {
+		return callSites.getOrDefault(name, 0) + (name.equals(MAIN) ? 1 : 0);
+	}
+
+	/**
+	 * Whether the given function may, directly or indirectly, call itself.
+	 */
+	public boolean isRecursive(String name) {
+		for (String callee : calls.getOrDefault(name, new HashSet<>())) {
+			if (reaches(callee, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a call of the given function may, directly or indirectly,
+	 * call the other function.
+	 * @param from function that is called
+	 * @param to function that may be reached
+	 */
+	public boolean reaches(String from, String to) {
+		Set<String> reached = new HashSet<>();
+		Deque<String> todo = new ArrayDeque<>();
+		todo.push(from);
+		while (!todo.isEmpty()) {
+			String function = todo.pop();
+			if (function.equals(to)) {
+				return true;
+			} else if (reached.add(function)) {
+				todo.addAll(calls.getOrDefault(function, new HashSet<>()));
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void enterFuncStat(FuncStatContext ctx) {
+		functions.add(ctx);
+		current.push(ctx.ID(0).getText());
+		calls.putIfAbsent(ctx.ID(0).getText(), new HashSet<>());
+	}
+
+	@Override
+	public void exitFuncStat(FuncStatContext ctx) {
+		current.pop();
+	}
+
+	@Override
+	public void enterEveryRule(ParserRuleContext ctx) {
+		if (!current.isEmpty() && (ctx instanceof StatContext || ctx instanceof ExprContext)) {
+			sizes.put(current.peek(), getSize(current.peek()) + 1);
+		}
+	}
+
+	@Override
+	public void enterFuncCall(FuncCallContext ctx) {
+		callSites.put(ctx.ID().getText(), callSites.getOrDefault(ctx.ID().getText(), 0) + 1);
+		if (!current.isEmpty()) {
+			sizes.put(current.peek(), getSize(current.peek()) + CALL_SIZE);
+			calls.get(current.peek()).add(ctx.ID().getText());
+			nonLeaves.add(current.peek());
+		}
+	}
+
+	@Override
+	public void enterRunStat(RunStatContext ctx) {
+		runs.add(ctx);
+		if (!current.isEmpty()) {
+			starters.add(current.peek());
+			nonLeaves.add(current.peek());
+		}
+	}
+
+	@Override
+	public void enterParforStat(ParforStatContext ctx) {
+		if (!current.isEmpty()) {
+			starters.add(current.peek());
+			nonLeaves.add(current.peek());
+		}
+	}
+}
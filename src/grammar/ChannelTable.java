@@ -0,0 +1,114 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared memory words of the channels of a program. A channel is a ring
+ * buffer of a fixed capacity, preceded by the number of values received
+ * from it so far, the head, the number of values sent to it so far, the
+ * tail, and a guard for each end. A value is stored at its number modulo
+ * the capacity, so the channel is empty if the head equals the tail and
+ * full if they differ by the capacity. Only a receiving thread moves the
+ * head and only a sending thread the tail, which needs no lock as long as
+ * one thread is at each end. The guard of an end is taken with TestAndSet
+ * when more than one thread may use it.
+ * @author tim, martijn
+ *
+ */
+public class ChannelTable extends GrammarBaseListener {
+
+	/**
+	 * Words of a channel before its buffer: the head, the tail and the
+	 * guards of both ends.
+	 */
+	public static final int HEADER = 4;
+
+	private final int capacity;
+	private final Map<String, Integer> channels = new LinkedHashMap<>();
+	private int end;
+
+	/**
+	 * Creates a table of channels of the given capacity.
+	 * @param capacity number of values a channel holds
+	 */
+	public ChannelTable(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Allocates the words of the channels of the given program.
+	 * @param tree program to analyse
+	 * @param start first free word of shared memory
+	 */
+	public void analyse(ParseTree tree, int start) {
+		end = start;
+		new ParseTreeWalker().walk(this, tree);
+	}
+
+	/**
+	 * Returns the number of values a channel holds.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the address of the number of values received from the given
+	 * channel.
+	 */
+	public int getHead(String name) {
+		return channels.get(name);
+	}
+
+	/**
+	 * Returns the address of the number of values sent to the given
+	 * channel.
+	 */
+	public int getTail(String name) {
+		return channels.get(name) + 1;
+	}
+
+	/**
+	 * Returns the address of the guard of the senders of the given channel.
+	 */
+	public int getSendGuard(String name) {
+		return channels.get(name) + 2;
+	}
+
+	/**
+	 * Returns the address of the guard of the receivers of the given
+	 * channel.
+	 */
+	public int getReceiveGuard(String name) {
+		return channels.get(name) + 3;
+	}
+
+	/**
+	 * Returns the address of the first word of the buffer of the given
+	 * channel.
+	 */
+	public int getBuffer(String name) {
+		return channels.get(name) + HEADER;
+	}
+
+	/**
+	 * Returns the first word after the channels.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	@Override
+	public void enterDeclStat(DeclStatContext ctx) {
+		if (ctx.type() instanceof ChanTypeContext && !channels.containsKey(ctx.ID().getText())) {
+			channels.put(ctx.ID().getText(), end);
+			end += HEADER + capacity;
+		}
+	}
+}
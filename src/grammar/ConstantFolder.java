@@ -0,0 +1,210 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.misc.NotNull;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.RuleNode;
+
+import java.math.BigInteger;
+
+/**
+ * Evaluates constant expressions at compile time. An expression is constant
+ * if it only consists of numbers, booleans and operators on them. The
+ * arithmetic follows the Sprockell ALU: values are 32 bit integers that
+ * wrap around, division rounds towards negative infinity and booleans are
+ * 0 or 1. Expressions without a type in the checker's Result, and divisions
+ * by zero, are left to the runtime.
+ * @author tim, martijn
+ *
+ */
+public class ConstantFolder extends GrammarBaseVisitor<Value> {
+
+	/**
+	 * Result of the checker, holding the types of all expressions.
+	 */
+	private final Result result;
+
+	/**
+	 * Folded values of the expressions seen so far.
+	 */
+	private final ParseTreeProperty<Value> values = new ParseTreeProperty<>();
+
+	/**
+	 * Expressions that were found not to be constant.
+	 */
+	private final ParseTreeProperty<Boolean> variable = new ParseTreeProperty<>();
+
+	public ConstantFolder(Result result) {
+		this.result = result;
+	}
+
+	/**
+	 * Returns the value of the given expression if it is constant.
+	 * @param expr expression node
+	 * @return value of the expression, or null if it is not constant
+	 */
+	public Value fold(ParseTree expr) {
+		if (variable.get(expr) != null) {
+			return null;
+		}
+		Value value = values.get(expr);
+		if (value == null) {
+			if (result.getType(expr) != null) {
+				value = expr.accept(this);
+			}
+			if (value == null) {
+				variable.put(expr, true);
+			} else {
+				values.put(expr, value);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Whether the given expression is constant.
+	 */
+	public boolean isConstant(ParseTree expr) {
+		return fold(expr) != null;
+	}
+
+	/**
+	 * Computes b^n the way the generated exponent code does: 1 for n <= 0,
+	 * wrapping around on overflow.
+	 */
+	public static int power(int base, int exponent) {
+		int result = 1;
+		while (exponent > 0) {
+			if ((exponent & 1) == 1) {
+				result *= base;
+			}
+			base *= base;
+			exponent >>= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a power of the given base can be computed with a shift: the
+	 * base is 0, 1 or a positive power of two.
+	 */
+	public static boolean isShiftBase(int base) {
+		return base >= 0 && Integer.bitCount(base) <= 1;
+	}
+
+	@Override
+	public Value visitPlusExpr(@NotNull PlusExprContext ctx) {
+		Value left = fold(ctx.expr(0));
+		Value right = fold(ctx.expr(1));
+		if (left == null || right == null) {
+			return null;
+		} else if (ctx.plusOp().PLUS() == null) {
+			return new Value(left.getValue() - right.getValue());
+		} else {
+			return new Value(left.getValue() + right.getValue());
+		}
+	}
+
+	@Override
+	public Value visitMultExpr(@NotNull MultExprContext ctx) {
+		Value left = fold(ctx.expr(0));
+		Value right = fold(ctx.expr(1));
+		if (left == null || right == null) {
+			return null;
+		} else if (ctx.multOp().STAR() != null) {
+			return new Value(left.getValue() * right.getValue());
+		} else if (right.getValue() != 0) {
+			return new Value(Math.floorDiv(left.getValue(), right.getValue()));
+		}
+		return null;
+	}
+
+	@Override
+	public Value visitExpExpr(@NotNull ExpExprContext ctx) {
+		Value left = fold(ctx.expr(0));
+		Value right = fold(ctx.expr(1));
+		if (left == null || right == null) {
+			return null;
+		}
+		return new Value(power(left.getValue(), right.getValue()));
+	}
+
+	@Override
+	public Value visitBoolExpr(@NotNull BoolExprContext ctx) {
+		Value left = fold(ctx.expr(0));
+		Value right = fold(ctx.expr(1));
+		if (left == null || right == null) {
+			return null;
+		} else if (ctx.boolOp().AND() == null) {
+			return new Value(left.getValue() | right.getValue());
+		} else {
+			return new Value(left.getValue() & right.getValue());
+		}
+	}
+
+	@Override
+	public Value visitCmpExpr(@NotNull CmpExprContext ctx) {
+		Value left = fold(ctx.expr(0));
+		Value right = fold(ctx.expr(1));
+		if (left == null || right == null) {
+			return null;
+		}
+		int l = left.getValue();
+		int r = right.getValue();
+		if (ctx.cmpOp().EQ() != null) {
+			return new Value(l == r);
+		} else if (ctx.cmpOp().NE() != null) {
+			return new Value(l != r);
+		} else if (ctx.cmpOp().GT() != null) {
+			return new Value(l > r);
+		} else if (ctx.cmpOp().GE() != null) {
+			return new Value(l >= r);
+		} else if (ctx.cmpOp().LT() != null) {
+			return new Value(l < r);
+		} else {
+			return new Value(l <= r);
+		}
+	}
+
+	@Override
+	public Value visitPrfExpr(@NotNull PrfExprContext ctx) {
+		Value value = fold(ctx.expr());
+		if (value == null) {
+			return null;
+		} else if (ctx.prfOp().MINUS() != null) {
+			return new Value(-value.getValue());
+		} else {
+			return new Value(value.getValue() == 0);
+		}
+	}
+
+	@Override
+	public Value visitParExpr(@NotNull ParExprContext ctx) {
+		return fold(ctx.expr());
+	}
+
+	@Override
+	public Value visitNumExpr(@NotNull NumExprContext ctx) {
+		return new Value(new BigInteger(ctx.NUM().getText()).intValue());
+	}
+
+	@Override
+	public Value visitTrueExpr(@NotNull TrueExprContext ctx) {
+		return new Value(true);
+	}
+
+	@Override
+	public Value visitFalseExpr(@NotNull FalseExprContext ctx) {
+		return new Value(false);
+	}
+
+	/**
+	 * Any other node, e.g. a variable or function call, is not constant.
+	 */
+	@Override
+	public Value visitChildren(@NotNull RuleNode node) {
+		return null;
+	}
+}
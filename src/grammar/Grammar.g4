@@ -32,6 +32,28 @@ program	: stat+;
 *		"locks" the lock
 *	unlockStat	- Unlock
 *		Set a lock in memory to zero, effectively "unlocking" the lock
+*	rlockStat	- Read Lock
+*		Locks a reader-writer lock for reading. Any number of readers can hold it at the same time, but not while a
+*		writer holds it
+*	runlockStat	- Read Unlock
+*		Releases a reader-writer lock held for reading
+*	wlockStat	- Write Lock
+*		Locks a reader-writer lock for writing, waiting until no reader or other writer holds it
+*	wunlockStat	- Write Unlock
+*		Releases a reader-writer lock held for writing
+*	barrierStat	- Barrier
+*		Waits until the number of threads between parentheses has reached the barrier, after which all of them
+*		continue. A barrier can be passed any number of times
+*	sendStat	- Send
+*		Appends the value of the expression to a channel, waiting while the channel is full
+*	parforStat	- Parallel For
+*		Executes the block for every value of the loop variable from the first expression up to the second, with the
+*		iterations split into chunks over all cores. The iterations are split into one chunk per core, or into chunks
+*		of the size after 'dynamic' that idle cores take one by one. Every variable after 'reduce' is combined over all
+*		iterations with sum, min or max; the iterations may assign variables of the enclosing function only that way
+*	atomicStat	- Atomic Block
+*		Executes the block without interference from other atomic blocks. The compiler takes a lock for every group of
+*		shared globals the block may touch, so that atomic blocks touching different globals can run at the same time
 *	returnStat	- Return
 *		Return statement, sets return value of the function. Must be located at top-level of the function scope
 */
@@ -46,6 +68,15 @@ stat	: GLOBAL? type ID (ASS expr)? SEMI							#declStat
 		| RUN ID LPAR (ID (COMMA expr)*) RPAR SEMI					#runStat
 		| LOCK ID SEMI												#lockStat
 		| UNLOCK ID SEMI											#unlockStat
+		| RLOCK ID SEMI												#rlockStat
+		| RUNLOCK ID SEMI											#runlockStat
+		| WLOCK ID SEMI												#wlockStat
+		| WUNLOCK ID SEMI											#wunlockStat
+		| BARRIER ID LPAR NUM RPAR SEMI								#barrierStat
+		| SEND ID LPAR expr RPAR SEMI								#sendStat
+		| PARFOR LPAR ID ASS expr SEMI ID LT expr (SEMI DYNAMIC NUM)? RPAR
+		  (REDUCE reduction (COMMA reduction)*)? block				#parforStat
+		| ATOMIC block												#atomicStat
 		| RETURN expr SEMI											#returnStat
 		;
 
@@ -55,6 +86,12 @@ stat	: GLOBAL? type ID (ASS expr)? SEMI							#declStat
 block 	: LBRACE stat* RBRACE
 		;
 
+/*	Reduction
+*		Combination, sum, min or max, of a variable over the iterations of a parfor statement
+*/
+reduction	: ID LPAR ID RPAR
+			;
+
 /* TypeSize
 *	INT
 *		Integer type
@@ -62,10 +99,13 @@ block 	: LBRACE stat* RBRACE
 *		Boolean type
 *	VOID
 *		Empty type
+*	CHAN
+*		Bounded channel of integers, only as a global variable without initial value
 */
 type	: INT														#intType
 		| BOOL														#boolType
 		| VOID														#voidType
+		| CHAN														#chanType
 		;
 
 /* Expressions
@@ -78,6 +118,8 @@ type	: INT														#intType
 *		the thread is set
 *	lockedExpr	- Locked Expression
 *		Checks if a lock is 'locked', returns a boolean. See 'lock' and 'unlock'.
+*	receiveExpr	- Receive Expression
+*		Takes the oldest value from a channel, waiting while the channel is empty
 *	plusExpr	- Addition Expression
 *		Addition and subtraction
 *	multExpr	- Multiplication Expression
@@ -106,6 +148,7 @@ type	: INT														#intType
 expr	: ID LPAR (expr (COMMA expr)*)? RPAR						#funcCall
 		| JOIN ID													#joinExpr
 		| LOCKED ID													#lockedExpr
+		| RECEIVE ID												#receiveExpr
 		| expr plusOp expr											#plusExpr
 		| expr multOp expr											#multExpr
 		| expr expOp expr											#expExpr
@@ -132,6 +175,7 @@ prfOp	: MINUS | NOT;					// - and !
 INT: 	I N T;
 BOOL: 	B O O L;
 VOID:	V O I D;
+CHAN:	C H A N;
 ENUM: 	E N U M;
 
 GLOBAL: G L O B A L;
@@ -143,6 +187,17 @@ JOIN:	J O I N;
 LOCK:	L O C K;
 UNLOCK:	U N L O C K;
 LOCKED:	L O C K E D;
+RLOCK:	R L O C K;
+RUNLOCK: R U N L O C K;
+WLOCK:	W L O C K;
+WUNLOCK: W U N L O C K;
+BARRIER: B A R R I E R;
+SEND:	S E N D;
+RECEIVE: R E C E I V E;
+PARFOR:	P A R F O R;
+DYNAMIC: D Y N A M I C;
+REDUCE:	R E D U C E;
+ATOMIC:	A T O M I C;
 RETURN: R E T U R N;
 TRUE:	T R U E;
 FALSE:	F A L S E;
@@ -0,0 +1,248 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges critical sections on the same lock to save acquires and releases.
+ * An unlock followed by a lock of the same lock, in the same statement
+ * list, is removed together with that lock if only simple statements are
+ * in between: declarations, assignments and expressions without calls,
+ * joins, locked or receives. A while loop of which the body holds the
+ * lock around simple statements takes the lock once around the whole loop
+ * instead, if the loop ends by itself: its condition is not constant and
+ * reads a variable the body assigns, but reads no shared global, and no
+ * variable it reads is computed from one in the body. A loop that never
+ * ends would never give the lock back. Both only happen if the statements
+ * involved are within the size budget, estimated as one per statement and
+ * expression.
+ * @author tim, martijn
+ *
+ */
+public class LockCoarsening {
+
+	private final SharedGlobals sharedGlobals;
+	private final LockElision lockElision;
+	private final ConstantFolder constants;
+	private final int budget;
+
+	/**
+	 * Lock and unlock statements that are removed.
+	 */
+	private final Set<ParserRuleContext> removed = new HashSet<>();
+
+	/**
+	 * Lock taken around each loop of which the critical section is hoisted.
+	 */
+	private final ParseTreeProperty<String> hoisted = new ParseTreeProperty<>();
+
+	/**
+	 * Creates the optimization for a program of which the threads and the
+	 * elided locks are known already.
+	 * @param budget largest size of the statements a critical section is
+	 *        extended over; 0 disables the optimization
+	 */
+	public LockCoarsening(SharedGlobals sharedGlobals, LockElision lockElision, ConstantFolder constants,
+			int budget) {
+		this.sharedGlobals = sharedGlobals;
+		this.lockElision = lockElision;
+		this.constants = constants;
+		this.budget = budget;
+	}
+
+	/**
+	 * Analyses the given program.
+	 * @param tree program to analyse
+	 */
+	public void analyse(ParseTree tree) {
+		if (budget > 0) {
+			visit(tree);
+		}
+	}
+
+	/**
+	 * Whether no code has to be generated for the given lock or unlock
+	 * statement.
+	 */
+	public boolean isRemoved(ParserRuleContext stat) {
+		return removed.contains(stat);
+	}
+
+	/**
+	 * Returns the lock to take around the given loop, or null.
+	 */
+	public String getHoisted(WhileStatContext loop) {
+		return hoisted.get(loop);
+	}
+
+	private void visit(ParseTree node) {
+		if (node instanceof ProgramContext) {
+			merge(((ProgramContext) node).stat());
+		} else if (node instanceof BlockContext) {
+			merge(((BlockContext) node).stat());
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			visit(node.getChild(i));
+		}
+		if (node instanceof WhileStatContext) {
+			hoist((WhileStatContext) node);
+		}
+	}
+
+	/**
+	 * Removes every unlock that is followed by a lock of the same lock,
+	 * with only simple statements within the budget in between.
+	 */
+	private void merge(List<StatContext> stats) {
+		for (int i = 0; i < stats.size(); i++) {
+			if (!(stats.get(i) instanceof UnlockStatContext) || !kept(stats.get(i))) {
+				continue;
+			}
+			String name = ((UnlockStatContext) stats.get(i)).ID().getText();
+			int size = 0;
+			for (int j = i + 1; j < stats.size() && size <= budget; j++) {
+				StatContext stat = stats.get(j);
+				if (stat instanceof LockStatContext && ((LockStatContext) stat).ID().getText().equals(name)
+						&& kept(stat)) {
+					removed.add(stats.get(i));
+					removed.add(stat);
+					break;
+				} else if (!isSimple(stat)) {
+					break;
+				}
+				size += size(stat);
+			}
+		}
+	}
+
+	/**
+	 * Hoists the critical section of the given loop if its body is a lock,
+	 * simple statements and the unlock of the same lock, apart from simple
+	 * statements before and after them.
+	 */
+	private void hoist(WhileStatContext loop) {
+		String name = null;
+		ParserRuleContext lock = null;
+		ParserRuleContext unlock = null;
+		for (StatContext stat : loop.block().stat()) {
+			if ((stat instanceof LockStatContext || stat instanceof UnlockStatContext) && !kept(stat)) {
+				continue; // no code
+			} else if (stat instanceof LockStatContext && lock == null) {
+				lock = stat;
+				name = ((LockStatContext) stat).ID().getText();
+			} else if (stat instanceof UnlockStatContext && lock != null && unlock == null
+					&& ((UnlockStatContext) stat).ID().getText().equals(name)) {
+				unlock = stat;
+			} else if (!isSimple(stat)) {
+				return;
+			}
+		}
+		if (unlock == null || size(loop.block()) > budget || !isSimple(loop.expr())
+				|| dependsOnThreads(loop) || !ends(loop)) {
+			return;
+		}
+		removed.add(lock);
+		removed.add(unlock);
+		hoisted.put(loop, name);
+	}
+
+	/**
+	 * Whether the condition of the loop reads a shared global, directly or
+	 * through a variable that is computed from one in the body.
+	 */
+	private boolean dependsOnThreads(WhileStatContext loop) {
+		Set<String> tainted = new HashSet<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (StatContext stat : loop.block().stat()) {
+				if (stat instanceof AssStatContext && reads(((AssStatContext) stat).expr(), tainted)) {
+					changed |= tainted.add(((AssStatContext) stat).ID().getText());
+				} else if (stat instanceof DeclStatContext && ((DeclStatContext) stat).expr() != null
+						&& reads(((DeclStatContext) stat).expr(), tainted)) {
+					changed |= tainted.add(((DeclStatContext) stat).ID().getText());
+				}
+			}
+		}
+		return reads(loop.expr(), tainted);
+	}
+
+	/**
+	 * Whether the condition of the loop can become false by the loop itself:
+	 * it is not constant, and reads a variable that the body assigns.
+	 */
+	private boolean ends(WhileStatContext loop) {
+		if (constants.fold(loop.expr()) != null) {
+			return false;
+		}
+		Set<String> assigned = new HashSet<>();
+		for (StatContext stat : loop.block().stat()) {
+			if (stat instanceof AssStatContext) {
+				assigned.add(((AssStatContext) stat).ID().getText());
+			}
+		}
+		return reads(loop.expr(), assigned);
+	}
+
+	/**
+	 * Whether the given expression reads a shared global or one of the
+	 * given variables.
+	 */
+	private boolean reads(ParseTree node, Set<String> tainted) {
+		if (node instanceof IdExprContext) {
+			String id = ((IdExprContext) node).ID().getText();
+			return sharedGlobals.isShared(id) || tainted.contains(id);
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (reads(node.getChild(i), tainted)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the given subtree is a declaration, assignment or expression
+	 * statement, or an expression, without calls, joins, locked or receives.
+	 */
+	private boolean isSimple(ParseTree node) {
+		if (node instanceof StatContext && !(node instanceof DeclStatContext || node instanceof AssStatContext
+				|| node instanceof ExprStatContext)) {
+			return false;
+		} else if (node instanceof FuncCallContext || node instanceof JoinExprContext
+				|| node instanceof LockedExprContext || node instanceof ReceiveExprContext) {
+			return false;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (!isSimple(node.getChild(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether code is generated for the given lock or unlock statement so far.
+	 */
+	private boolean kept(ParserRuleContext stat) {
+		return !lockElision.isElided(stat) && !removed.contains(stat);
+	}
+
+	/**
+	 * Returns the estimated size of the given subtree.
+	 */
+	private int size(ParseTree node) {
+		int size = node instanceof StatContext || node instanceof ExprContext ? 1 : 0;
+		for (int i = 0; i < node.getChildCount(); i++) {
+			size += size(node.getChild(i));
+		}
+		return size;
+	}
+}
@@ -0,0 +1,173 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Finds the lock and unlock statements that can never be contended, for
+ * which the generator emits nothing. All statements of a lock are elided
+ * if only one thread uses the lock, by the thread analysis of
+ * SharedGlobals, and no locked expression queries it. A lock taken and
+ * released again before the first thread is started, by the statements of
+ * the top level and then those of main, is elided there whatever other
+ * threads do with it later.
+ * @author tim, martijn
+ *
+ */
+public class LockElision {
+
+	/**
+	 * Function the main thread calls after the top level statements.
+	 */
+	private static final String MAIN = "main";
+
+	private final SharedGlobals sharedGlobals;
+	private final CallGraph callGraph;
+
+	/**
+	 * Lock and unlock statements that are elided.
+	 */
+	private final Set<ParserRuleContext> elided = new HashSet<>();
+
+	/**
+	 * Lock and unlock statements per lock name, and the names that are
+	 * queried with locked.
+	 */
+	private final Map<String, List<ParserRuleContext>> statements = new TreeMap<>();
+	private final Set<String> queried = new HashSet<>();
+
+	/**
+	 * Why the statements of a lock were elided, per lock name.
+	 */
+	private final Map<String, String> reasons = new HashMap<>();
+
+	/**
+	 * Creates the analysis for a program of which the threads and calls are
+	 * analysed already.
+	 */
+	public LockElision(SharedGlobals sharedGlobals, CallGraph callGraph) {
+		this.sharedGlobals = sharedGlobals;
+		this.callGraph = callGraph;
+	}
+
+	/**
+	 * Analyses the given program.
+	 * @param tree program to analyse
+	 */
+	public void analyse(ProgramContext tree) {
+		collect(tree);
+		for (Map.Entry<String, List<ParserRuleContext>> lock : statements.entrySet()) {
+			if (!sharedGlobals.isSharedLock(lock.getKey()) && !queried.contains(lock.getKey())) {
+				elided.addAll(lock.getValue());
+				reasons.put(lock.getKey(), "used by one thread only");
+			}
+		}
+		Map<String, ParserRuleContext> held = new HashMap<>();
+		boolean started = elideBeforeThreads(tree.stat(), held);
+		FuncStatContext main = callGraph.getFunctions().stream()
+				.filter(function -> function.ID(0).getText().equals(MAIN)).findFirst().orElse(null);
+		if (!started && main != null && callGraph.getCallSites(MAIN) == 1 && !callGraph.isThread(MAIN)) {
+			elideBeforeThreads(main.block().stat(), held);
+		}
+	}
+
+	/**
+	 * Whether no code has to be generated for the given lock or unlock
+	 * statement.
+	 */
+	public boolean isElided(ParserRuleContext stat) {
+		return elided.contains(stat);
+	}
+
+	/**
+	 * Prints per lock how many of its statements were elided and why.
+	 */
+	public void printReport() {
+		for (Map.Entry<String, List<ParserRuleContext>> lock : statements.entrySet()) {
+			int count = 0;
+			for (ParserRuleContext stat : lock.getValue()) {
+				count += elided.contains(stat) ? 1 : 0;
+			}
+			String reason = reasons.get(lock.getKey());
+			System.out.println("Lock " + lock.getKey() + ": elided " + count + " of " + lock.getValue().size()
+					+ " statement(s)" + (reason == null ? "" : ", " + reason));
+		}
+	}
+
+	/**
+	 * Elides the lock and unlock pairs among the given statements up to the
+	 * first statement that may start a thread. Only statements directly in
+	 * the list are considered, so every elided lock is followed by its
+	 * unlock on every path.
+	 * @param stats statements executed in this order by the main thread
+	 * @param held lock statements elided so far that wait for their unlock
+	 * @return whether a statement that may start a thread was found
+	 */
+	private boolean elideBeforeThreads(List<StatContext> stats, Map<String, ParserRuleContext> held) {
+		for (StatContext stat : stats) {
+			if (startsThreads(stat)) {
+				return true;
+			} else if (stat instanceof LockStatContext) {
+				String name = ((LockStatContext) stat).ID().getText();
+				if (!held.containsKey(name) && !queried.contains(name)) {
+					held.put(name, stat);
+				}
+			} else if (stat instanceof UnlockStatContext) {
+				ParserRuleContext lock = held.remove(((UnlockStatContext) stat).ID().getText());
+				if (lock != null && !elided.contains(stat)) {
+					elided.add(lock);
+					elided.add(stat);
+					reasons.putIfAbsent(((UnlockStatContext) stat).ID().getText(), "taken before any thread is started");
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether executing the given subtree may start a thread. Function
+	 * declarations are not executed where they are declared.
+	 */
+	private boolean startsThreads(ParseTree node) {
+		if (node instanceof FuncStatContext) {
+			return false;
+		} else if (node instanceof RunStatContext || node instanceof ParforStatContext) {
+			return true;
+		} else if (node instanceof FuncCallContext && callGraph.startsThreads(((FuncCallContext) node).ID().getText())) {
+			return true;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (startsThreads(node.getChild(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void collect(ParseTree node) {
+		if (node instanceof LockStatContext) {
+			add(((LockStatContext) node).ID().getText(), (ParserRuleContext) node);
+		} else if (node instanceof UnlockStatContext) {
+			add(((UnlockStatContext) node).ID().getText(), (ParserRuleContext) node);
+		} else if (node instanceof LockedExprContext) {
+			queried.add(((LockedExprContext) node).ID().getText());
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			collect(node.getChild(i));
+		}
+	}
+
+	private void add(String name, ParserRuleContext stat) {
+		statements.computeIfAbsent(name, k -> new ArrayList<>()).add(stat);
+	}
+}
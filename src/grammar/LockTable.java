@@ -0,0 +1,177 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared memory words of the locks of a program, one group of words per
+ * lock name used in a lock statement or locked. The first word of a lock
+ * is set while it is held, so locked is a single read of it. A
+ * test-and-set lock is that word alone. A ticket lock adds a guard, taken
+ * with TestAndSet to draw a ticket, the next ticket to hand out and the
+ * ticket being served. A reader-writer lock has the writer flag as its
+ * first word, a guard and the number of readers. A barrier, which shares
+ * the names of the locks, has a sense that flips every time all threads
+ * have arrived, a guard and the number of threads that arrived so far.
+ * @author tim, martijn
+ *
+ */
+public class LockTable extends GrammarBaseListener {
+
+	/**
+	 * Words of a test-and-set lock and of a ticket lock.
+	 */
+	public static final int LOCK_SIZE = 1;
+	public static final int TICKET_SIZE = 4;
+
+	/**
+	 * Words of a reader-writer lock.
+	 */
+	public static final int RW_SIZE = 3;
+
+	/**
+	 * Words of a barrier.
+	 */
+	public static final int BARRIER_SIZE = 3;
+
+	private final int size;
+	private final Map<String, Integer> sizes = new LinkedHashMap<>();
+	private final Map<String, Integer> locks = new LinkedHashMap<>();
+	private int end;
+
+	/**
+	 * Creates a table of test-and-set or ticket locks.
+	 * @param tickets whether the locks are ticket locks
+	 */
+	public LockTable(boolean tickets) {
+		this.size = tickets ? TICKET_SIZE : LOCK_SIZE;
+	}
+
+	/**
+	 * Allocates the words of the locks of the given program.
+	 * @param tree program to analyse
+	 * @param start first free word of shared memory
+	 */
+	public void analyse(ParseTree tree, int start) {
+		new ParseTreeWalker().walk(this, tree);
+		end = start;
+		for (Map.Entry<String, Integer> lock : sizes.entrySet()) {
+			locks.put(lock.getKey(), end);
+			end += lock.getValue();
+		}
+	}
+
+	/**
+	 * Returns the address of the word that is set while the given lock is
+	 * held; for test-and-set locks the lock itself.
+	 */
+	public int getHeld(String name) {
+		return locks.get(name);
+	}
+
+	/**
+	 * Returns the address of the guard of the given ticket lock,
+	 * reader-writer lock or barrier.
+	 */
+	public int getGuard(String name) {
+		return locks.get(name) + 1;
+	}
+
+	/**
+	 * Returns the address of the next ticket of the given ticket lock.
+	 */
+	public int getNext(String name) {
+		return locks.get(name) + 2;
+	}
+
+	/**
+	 * Returns the address of the ticket being served by the given ticket
+	 * lock.
+	 */
+	public int getServing(String name) {
+		return locks.get(name) + 3;
+	}
+
+	/**
+	 * Returns the address of the number of readers of the given
+	 * reader-writer lock.
+	 */
+	public int getReaders(String name) {
+		return locks.get(name) + 2;
+	}
+
+	/**
+	 * Returns the address of the sense of the given barrier.
+	 */
+	public int getSense(String name) {
+		return locks.get(name);
+	}
+
+	/**
+	 * Returns the address of the number of threads that arrived at the
+	 * given barrier.
+	 */
+	public int getArrived(String name) {
+		return locks.get(name) + 2;
+	}
+
+	/**
+	 * Returns the first word after the locks.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Adds a lock; a name used by a locked expression before its
+	 * reader-writer lock statements gets the size of the latter.
+	 */
+	private void add(String name, int size) {
+		sizes.merge(name, size, Math::max);
+	}
+
+	@Override
+	public void enterLockStat(LockStatContext ctx) {
+		add(ctx.ID().getText(), size);
+	}
+
+	@Override
+	public void enterUnlockStat(UnlockStatContext ctx) {
+		add(ctx.ID().getText(), size);
+	}
+
+	@Override
+	public void enterRlockStat(RlockStatContext ctx) {
+		add(ctx.ID().getText(), RW_SIZE);
+	}
+
+	@Override
+	public void enterRunlockStat(RunlockStatContext ctx) {
+		add(ctx.ID().getText(), RW_SIZE);
+	}
+
+	@Override
+	public void enterWlockStat(WlockStatContext ctx) {
+		add(ctx.ID().getText(), RW_SIZE);
+	}
+
+	@Override
+	public void enterWunlockStat(WunlockStatContext ctx) {
+		add(ctx.ID().getText(), RW_SIZE);
+	}
+
+	@Override
+	public void enterBarrierStat(BarrierStatContext ctx) {
+		add(ctx.ID().getText(), BARRIER_SIZE);
+	}
+
+	@Override
+	public void enterLockedExpr(LockedExprContext ctx) {
+		add(ctx.ID().getText(), size);
+	}
+}
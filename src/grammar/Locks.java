@@ -2,8 +2,10 @@ package grammar;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * List of Lock objects to keep track of declared locks.
@@ -15,6 +17,17 @@ public class Locks {
 
 	Map<String, Lock> locks = new HashMap<String, Lock>();
 	
+	/**
+	 * Names of the reader-writer locks, which are used with rlock,
+	 * runlock, wlock and wunlock instead of lock and unlock.
+	 */
+	Set<String> rwLocks = new HashSet<String>();
+	
+	/**
+	 * Number of threads of each barrier, as given by its first use.
+	 */
+	Map<String, Integer> barriers = new HashMap<String, Integer>();
+	
 	/**
 	 * Attempts to acquire the lock on the lock with a given ID.
 	 * A new lock will be created if it did not exist already.
@@ -47,6 +60,61 @@ public class Locks {
 	}
 	
 	
+	/**
+	 * Checks whether a lock with the given ID is known.
+	 * @param id name of the lock.
+	 * @return <code>true</code> if the lock was locked somewhere.
+	 */
+	public boolean hasLock(String id) {
+		return locks.containsKey(id);
+	}
+	
+	/**
+	 * Adds a reader-writer lock with the given ID, if it is not known yet.
+	 * @param id name of the reader-writer lock.
+	 */
+	public void addRwLock(String id) {
+		rwLocks.add(id);
+	}
+	
+	/**
+	 * Checks whether a reader-writer lock with the given ID is known.
+	 * @param id name of the reader-writer lock.
+	 * @return <code>true</code> if the lock was locked for reading or 
+	 * writing somewhere.
+	 */
+	public boolean hasRwLock(String id) {
+		return rwLocks.contains(id);
+	}
+	
+	/**
+	 * Adds a barrier with the given ID, if it is not known yet.
+	 * @param id name of the barrier.
+	 * @param count number of threads that wait for each other.
+	 */
+	public void addBarrier(String id, int count) {
+		barriers.putIfAbsent(id, count);
+	}
+	
+	/**
+	 * Checks whether a barrier with the given ID is known.
+	 * @param id name of the barrier.
+	 * @return <code>true</code> if the barrier is used somewhere.
+	 */
+	public boolean hasBarrier(String id) {
+		return barriers.containsKey(id);
+	}
+	
+	/**
+	 * Returns the number of threads of the barrier with the given ID.
+	 * @param id name of the barrier.
+	 * @return the thread count of its first use, or <code>null</code> if 
+	 * the barrier is not known.
+	 */
+	public Integer getBarrierCount(String id) {
+		return barriers.get(id);
+	}
+	
 	/**
 	 * Simple implementation of a reentrant lock.
 	 * @author martijn
@@ -0,0 +1,164 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the expressions in a while loop that have the same value on every
+ * iteration and can be computed once before the loop. An expression is
+ * invariant if none of the variables it reads is assigned or declared in
+ * the loop. Shared global variables are never invariant, since another
+ * thread may change them at any time, e.g. the flag a polling loop waits
+ * for, whatever else the loop does meanwhile. Loops calling functions are
+ * left alone, as a call may change any variable, and so are loops with a
+ * parfor statement, of which other cores execute the body without the
+ * hoisted values.
+ * Invariant expressions are evaluated before the loop even if the loop is
+ * never entered, so expressions that can fail, i.e. divisions by a non
+ * constant, are never selected.
+ * @author tim, martijn
+ *
+ */
+public class LoopInvariants extends GrammarBaseListener {
+
+	private final ConstantFolder constants;
+	private final SymbolTable symbolTable;
+	private final SharedGlobals sharedGlobals;
+
+	/**
+	 * Expressions that were already hoisted out of an enclosing loop.
+	 */
+	private final ParseTreeProperty<String> hoisted;
+
+	/**
+	 * Variables assigned or declared in the loop.
+	 */
+	private final Set<String> modified = new HashSet<>();
+	private boolean calls = false;
+
+	public LoopInvariants(ConstantFolder constants, SymbolTable symbolTable, SharedGlobals sharedGlobals,
+			ParseTreeProperty<String> hoisted) {
+		this.constants = constants;
+		this.symbolTable = symbolTable;
+		this.sharedGlobals = sharedGlobals;
+		this.hoisted = hoisted;
+	}
+
+	/**
+	 * Returns the largest invariant expressions of the given loop that are
+	 * worth computing once, in the order they appear in the loop.
+	 * @param loop while statement
+	 * @return invariant expressions, none of which contains another
+	 */
+	public List<ExprContext> find(WhileStatContext loop) {
+		new ParseTreeWalker().walk(this, loop);
+		List<ExprContext> invariants = new ArrayList<>();
+		if (!calls) {
+			collect(loop, invariants);
+		}
+		return invariants;
+	}
+
+	private void collect(ParseTree node, List<ExprContext> invariants) {
+		if (node instanceof ExprContext && hoisted.get(node) == null && !constants.isConstant(node)
+				&& invariant(node) && safe(node) && worthwhile(node)) {
+			invariants.add((ExprContext) node);
+			return;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			collect(node.getChild(i), invariants);
+		}
+	}
+
+	/**
+	 * Whether the expression has the same value on every iteration.
+	 */
+	private boolean invariant(ParseTree expr) {
+		if (hoisted.get(expr) != null || constants.isConstant(expr)) {
+			return true;
+		} else if (expr instanceof IdExprContext) {
+			String id = expr.getText();
+			if (modified.contains(id)) {
+				return false;
+			}
+			return !isShared(id);
+		} else if (expr instanceof FuncCallContext || expr instanceof JoinExprContext
+				|| expr instanceof LockedExprContext || expr instanceof ReceiveExprContext
+				|| expr instanceof EidExprContext) {
+			return false;
+		}
+		for (int i = 0; i < expr.getChildCount(); i++) {
+			if (expr.getChild(i) instanceof ExprContext && !invariant(expr.getChild(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the expression can be evaluated without failing, also on a
+	 * path where the loop would not have evaluated it.
+	 */
+	private boolean safe(ParseTree expr) {
+		if (hoisted.get(expr) != null) {
+			return true;
+		} else if (expr instanceof MultExprContext && ((MultExprContext) expr).multOp().SLASH() != null) {
+			Value divisor = constants.fold(((MultExprContext) expr).expr(1));
+			if (divisor == null || divisor.getValue() == 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < expr.getChildCount(); i++) {
+			if (expr.getChild(i) instanceof ExprContext && !safe(expr.getChild(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether loading the value is cheaper than computing it: everything
+	 * except a variable, which is in local memory and a single Load already.
+	 */
+	private boolean worthwhile(ParseTree expr) {
+		while (expr instanceof ParExprContext) {
+			expr = ((ParExprContext) expr).expr();
+		}
+		return !(expr instanceof IdExprContext);
+	}
+
+	/**
+	 * Whether the variable lives in shared memory.
+	 */
+	private boolean isShared(String id) {
+		return symbolTable.isGlobal(id) && sharedGlobals.isShared(id);
+	}
+
+	@Override
+	public void enterDeclStat(DeclStatContext ctx) {
+		modified.add(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterAssStat(AssStatContext ctx) {
+		modified.add(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterFuncCall(FuncCallContext ctx) {
+		calls = true;
+	}
+
+	@Override
+	public void enterParforStat(ParforStatContext ctx) {
+		calls = true;
+	}
+}
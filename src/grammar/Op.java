@@ -1,20 +1,37 @@
 package grammar;
 
+import sprockell.Label;
 import sprockell.OpCode;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Op {
-	private String label;
+	private Label label;
 	private OpCode opCode;
 	private String[] operands;
+	private Label target;
 
 	public Op(OpCode opCode, String... operands) {
 		this.opCode = opCode;
 		this.operands = operands;
 	}
 
-	public Op(String label, OpCode opCode, String... operands) {
+	public Op(Label label, OpCode opCode, String... operands) {
+		this.label = label;
+		this.opCode = opCode;
+		this.operands = operands;
+	}
+
+	/**
+	 * Creates a Branch or Jump to the given label, or a Const loading its
+	 * line number, e.g. a return address. The absolute target is only
+	 * known once all labels are resolved, see {@link #toString()}.
+	 */
+	public Op(Label label, OpCode opCode, Label target, String... operands) {
 		this.label = label;
 		this.opCode = opCode;
+		this.target = target;
 		this.operands = operands;
 	}
 
@@ -26,7 +43,102 @@ public class Op {
 		return operands;
 	}
 
-	public String getLabel() {
+	public Label getLabel() {
 		return label;
 	}
+
+	public void setLabel(Label label) {
+		this.label = label;
+	}
+
+	public Label getTarget() {
+		return target;
+	}
+
+	public void setTarget(Label target) {
+		this.target = target;
+	}
+
+	/**
+	 * Returns the register written by this instruction, or null if it
+	 * writes none.
+	 */
+	public String getDefined() {
+		switch (opCode) {
+			case Compute:
+				return operands[3];
+			case Const:
+				return operands[operands.length - 1];
+			case Load:
+				return operands[1];
+			case Pop:
+			case Receive:
+				return operands[0];
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Returns the registers read by this instruction, including the
+	 * registers of Deref addresses. The stack pointer used by Push and Pop
+	 * is not included.
+	 */
+	public List<String> getUsed() {
+		List<String> used = new ArrayList<>();
+		switch (opCode) {
+			case Compute:
+				used.add(operands[1]);
+				used.add(operands[2]);
+				break;
+			case Branch:
+			case Push:
+				used.add(operands[0]);
+				break;
+			case Load:
+			case Read:
+			case TestAndSet:
+				addDeref(used, operands[0]);
+				break;
+			case Store:
+			case Write:
+				used.add(operands[0]);
+				addDeref(used, operands[1]);
+				break;
+			case Jump:
+				addDeref(used, operands.length > 0 ? operands[0] : "");
+				break;
+			default:
+				break;
+		}
+		return used;
+	}
+
+	/**
+	 * Adds the register of a "(Deref reg)" or "(Ind reg)" operand.
+	 */
+	private static void addDeref(List<String> used, String operand) {
+		if (operand.startsWith("(Deref ") || operand.startsWith("(Ind ")) {
+			used.add(operand.substring(operand.indexOf(' ') + 1, operand.length() - 1));
+		}
+	}
+
+	/**
+	 * SPRiL representation of this instruction. Labels have to be resolved
+	 * before calling this on a Branch or Jump.
+	 */
+	@Override
+	public String toString() {
+		String result = opCode.toString();
+		if (target != null && opCode == OpCode.Const) {
+			result += " " + target.getLine();
+		}
+		for (String operand : operands) {
+			result += " " + operand;
+		}
+		if (target != null && opCode != OpCode.Const) {
+			result += " (Abs " + target.getLine() + ")";
+		}
+		return result;
+	}
 }
@@ -9,7 +9,9 @@ import org.antlr.v4.runtime.misc.NotNull;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Checks a given PP07 parse Tree on its validity as PP07 code. It uses a 
@@ -50,6 +52,21 @@ public class PP07Checker extends GrammarBaseListener {
 	 */
 	private Runs runs;
 
+	/**
+	 * Parfor statement of which the body is being checked, if any, and the
+	 * variables declared in it, the loop variable included.
+	 */
+	private ParforStatContext parfor;
+	private Set<String> parforLocals;
+
+	/**
+	 * Atomic block being checked, if any, the functions called in atomic
+	 * blocks and the functions that have an atomic block.
+	 */
+	private AtomicStatContext atomic;
+	private Set<String> atomicCalls;
+	private Set<String> atomicFunctions;
+
 	/**
 	 * Checks a given PP07 parse Tree on its validity as PP07 code. It uses a 
 	 * ParseTreeWalker to walk through the tree, checking code on typing, decla-
@@ -65,8 +82,14 @@ public class PP07Checker extends GrammarBaseListener {
 		this.result = new Result();
 		this.symbolTable = new SymbolTable();
 		this.functions = walker.getFunctions();
+		this.result.setFunctions(functions);
 		this.locks = walker.getLocks();
 		this.runs = walker.getRuns();
+		this.parfor = null;
+		this.parforLocals = new HashSet<>();
+		this.atomic = null;
+		this.atomicCalls = new HashSet<>();
+		this.atomicFunctions = new HashSet<>();
 		this.errors = walker.getErrors();
 		new ParseTreeWalker().walk(this, tree);
 		if (hasErrors()) {
@@ -79,10 +102,21 @@ public class PP07Checker extends GrammarBaseListener {
 	/**
 	 * Checks for an empty program, and has code for detecting the absence 
 	 * of a main method. Thst code is not used because of missing Function
-	 * code in the generator.
+	 * code in the generator. An atomic block cannot call a function that
+	 * may execute another atomic block, which would wait for the locks
+	 * already held.
 	 */
 	@Override
 	public void exitProgram(ProgramContext ctx) {
+		CallGraph callGraph = new CallGraph();
+		callGraph.analyse(ctx);
+		for (String callee : atomicCalls) {
+			for (String function : atomicFunctions) {
+				if (callGraph.reaches(callee, function)) {
+					addError("Atomic block calls " + callee + ", which may execute the atomic block in " + function);
+				}
+			}
+		}
 		if (ctx.stat().size() < 1) {
 			addError("Empty program");
 		} else if (!functions.hasFunction("main")) {
@@ -98,6 +132,12 @@ public class PP07Checker extends GrammarBaseListener {
 	 */
 	@Override
 	public void exitDeclStat(DeclStatContext ctx) {
+		if (getType(ctx.type()) == Type.CHAN && (ctx.GLOBAL() == null || ctx.expr() != null)) {
+			addError("Channel " + ctx.ID().getText() + " must be declared global without a value");
+		}
+		if (parfor != null) {
+			parforLocals.add(ctx.ID().getText());
+		}
 		if (ctx.GLOBAL() == null) {
 			if (!symbolTable.add(ctx.ID().getText(), getType(ctx.type())))
 				addError("Variable name " + ctx.ID().getText() + " already declared in local scope");
@@ -117,12 +157,16 @@ public class PP07Checker extends GrammarBaseListener {
 
 	/**
 	 * Assignment is checked at being of the correct type. Also checks if the
-	 * variable was declared at all.
+	 * variable was declared at all, and that a parfor body assigns no
+	 * variable of the enclosing function but its reductions.
 	 */
 	@Override
 	public void exitAssStat(AssStatContext ctx) {
 		if (symbolTable.type(ctx.ID().getText()) == null)
 			addError("\"" + ctx.ID().getText() + "\" was not declared in any scope");
+		else if (parfor != null && !parforLocals.contains(ctx.ID().getText())
+				&& !symbolTable.isGlobal(ctx.ID().getText()) && !reduces(parfor, ctx.ID().getText()))
+			addError("Variable " + ctx.ID().getText() + " can only be assigned in a parfor statement as a reduction");
 		if (symbolTable.type(ctx.ID().getText()) != getType(ctx.expr())) {
 			addError("Assignment is of wrong type. Expected: " +
 					symbolTable.type(ctx.ID().getText()) +
@@ -174,9 +218,14 @@ public class PP07Checker extends GrammarBaseListener {
 	@Override
 	public void enterFuncStat(FuncStatContext ctx) {
 		symbolTable.openScope();
+		for (int i = 0; i < ctx.ID().size(); i++) {
+			if (getType(ctx.type(i)) == Type.CHAN) {
+				addError("Channels cannot be passed to or returned from function " + ctx.ID(0).getText());
+			}
+		}
 		for (int i = 1; i < ctx.ID().size(); i++) {
-			if (!symbolTable.addGlobal(ctx.ID(i).getText(), getType(ctx.type(i))))
-				addError("Variable name " + ctx.ID(i).getText() + " already declared in global scope");
+			if (!symbolTable.add(ctx.ID(i).getText(), getType(ctx.type(i))))
+				addError("Argument name " + ctx.ID(i).getText() + " already declared in function " + ctx.ID(0).getText());
 		}
 	}
 	
@@ -226,7 +275,7 @@ public class PP07Checker extends GrammarBaseListener {
 						+ "Expected: " + function.getArgumentCount()
 						+ " Actual: " + ctx.expr().size());
 			}
-			setEntry(ctx, entry(function.getContext()));
+			setEntry(ctx, ctx.expr().isEmpty() ? ctx : entry(ctx.expr(0)));
 		} else {
 			addError("Function " + ctx.ID(0).getText() + " not declared in program");
 		}
@@ -234,10 +283,13 @@ public class PP07Checker extends GrammarBaseListener {
 	}
 
 	/**
-	 * Sets the CFG entry for the given node.
+	 * Checks that the lock is not a reader-writer lock. Sets the CFG entry 
+	 * for the given node.
 	 */
 	@Override
 	public void exitLockStat(LockStatContext ctx) {
+		if (locks.hasRwLock(ctx.ID().getText()))
+			addError("Lock " + ctx.ID().getText() + " is a reader-writer lock");
 		setEntry(ctx, ctx);
 	}
 
@@ -251,12 +303,87 @@ public class PP07Checker extends GrammarBaseListener {
 		setEntry(ctx, ctx);
 	}
 
+	/**
+	 * Checks that the reader-writer lock is not a plain lock.
+	 */
+	@Override
+	public void exitRlockStat(RlockStatContext ctx) {
+		checkRwLock(ctx.ID().getText(), true);
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks whether the reader-writer lock is declared.
+	 */
+	@Override
+	public void exitRunlockStat(RunlockStatContext ctx) {
+		checkRwLock(ctx.ID().getText(), false);
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks that the reader-writer lock is not a plain lock.
+	 */
+	@Override
+	public void exitWlockStat(WlockStatContext ctx) {
+		checkRwLock(ctx.ID().getText(), true);
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks whether the reader-writer lock is declared.
+	 */
+	@Override
+	public void exitWunlockStat(WunlockStatContext ctx) {
+		checkRwLock(ctx.ID().getText(), false);
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks that the barrier is not a lock, waits for at least one thread
+	 * and is always used with the same thread count.
+	 */
+	@Override
+	public void exitBarrierStat(BarrierStatContext ctx) {
+		String id = ctx.ID().getText();
+		int count = Integer.parseInt(ctx.NUM().getText());
+		if (locks.hasLock(id) || locks.hasRwLock(id)) {
+			addError("Barrier " + id + " is also used as a lock");
+		} else if (count < 1) {
+			addError("Barrier " + id + " must wait for at least one thread");
+		} else if (locks.getBarrierCount(id) != count) {
+			addError("Barrier " + id + " used with " + count + " threads, but with "
+					+ locks.getBarrierCount(id) + " before");
+		}
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks that a reader-writer lock is not also used as a plain lock, 
+	 * and that a reader-writer lock that is released is locked somewhere.
+	 * @param id name of the reader-writer lock
+	 * @param locking whether the lock is locked here
+	 */
+	private void checkRwLock(String id, boolean locking) {
+		if (locks.hasLock(id)) {
+			addError("Lock " + id + " is not a reader-writer lock");
+		} else if (!locking && !locks.hasRwLock(id)) {
+			addError("Reader-writer lock " + id + " never declared in program");
+		}
+	}
+	
 	/**
 	 * Checks whether this return statement is the last 
 	 * statement in the block.
 	 */
 	@Override
 	public void exitReturnStat(ReturnStatContext ctx) {
+		if (parfor != null) {
+			addError("Return statement in parfor statement");
+		}
+		if (atomic != null) {
+			addError("Return statement in atomic block");
+		}
 		ParseTree stat = ctx;
 		while (!(stat instanceof FuncStatContext)) {
 			if (ctx.getParent().getChild(ctx.getParent().getChildCount() - 2) != ctx) {
@@ -271,21 +398,118 @@ public class PP07Checker extends GrammarBaseListener {
 	}
 
 	/**
-	 * Opens the scope for the given block.
+	 * Opens the scope for the given block. The block of a parfor statement
+	 * declares its loop variable.
 	 */
 	@Override
 	public void enterBlock(@NotNull BlockContext ctx) {
 		symbolTable.openScope();
+		if (ctx.getParent() instanceof ParforStatContext) {
+			String id = ((ParforStatContext) ctx.getParent()).ID(0).getText();
+			symbolTable.add(id, Type.INT);
+			parforLocals.add(id);
+		}
 	}
 
 	/**
-	 * Closes the scope for the given block.
+	 * Starts checking the body of a parfor statement, which cannot be
+	 * nested in another one.
 	 */
 	@Override
-	public void exitBlock(BlockContext ctx) {
-		if (!ctx.stat().isEmpty()) {
-			setEntry(ctx, entry(ctx.stat(0)));
+	public void enterParforStat(ParforStatContext ctx) {
+		if (parfor == null) {
+			parfor = ctx;
+			parforLocals.clear();
+		} else {
+			addError("Parfor statement nested in another parfor statement");
+		}
+	}
+
+	/**
+	 * Checks that the bounds are integers, that the condition tests the
+	 * loop variable, that the chunk size is positive and that every
+	 * reduction combines a distinct local integer variable with sum, min
+	 * or max.
+	 */
+	@Override
+	public void exitParforStat(ParforStatContext ctx) {
+		String id = ctx.ID(0).getText();
+		checkType(ctx.expr(0), Type.INT);
+		checkType(ctx.expr(1), Type.INT);
+		if (!ctx.ID(1).getText().equals(id)) {
+			addError("Condition of parfor statement does not test loop variable " + id);
 		}
+		if (ctx.NUM() != null && Integer.parseInt(ctx.NUM().getText()) < 1) {
+			addError("Chunk size of parfor statement must be positive");
+		}
+		Set<String> reduced = new HashSet<>();
+		for (ReductionContext reduction : ctx.reduction()) {
+			String var = reduction.ID(1).getText();
+			if (!ParforTable.isReduction(reduction.ID(0).getText())) {
+				addError("Unknown reduction " + reduction.ID(0).getText() + ", expected sum, min or max");
+			}
+			if (symbolTable.type(var) != Type.INT || symbolTable.isGlobal(var)) {
+				addError("Reduction variable " + var + " is not a local int variable");
+			} else if (var.equals(id) || !reduced.add(var)) {
+				addError("Reduction variable " + var + " is the loop variable or reduced twice");
+			}
+		}
+		setEntry(ctx, ctx.expr(0));
+		if (parfor == ctx) {
+			parfor = null;
+		}
+	}
+
+	/**
+	 * Starts checking an atomic block, which cannot be nested in another
+	 * one, and records the function it is in.
+	 */
+	@Override
+	public void enterAtomicStat(AtomicStatContext ctx) {
+		if (atomic == null) {
+			atomic = ctx;
+		} else {
+			addError("Atomic block nested in another atomic block");
+		}
+		ParseTree stat = ctx;
+		while (stat != null && !(stat instanceof FuncStatContext)) {
+			stat = stat.getParent();
+		}
+		if (stat != null) {
+			atomicFunctions.add(((FuncStatContext) stat).ID(0).getText());
+		}
+	}
+
+	/**
+	 * Fall-through of enterBlock, like a block statement.
+	 */
+	@Override
+	public void exitAtomicStat(AtomicStatContext ctx) {
+		setEntry(ctx, entry(ctx.block()));
+		if (atomic == ctx) {
+			atomic = null;
+		}
+	}
+
+	/**
+	 * Whether the given parfor statement reduces the given variable.
+	 */
+	private boolean reduces(ParforStatContext ctx, String id) {
+		for (ReductionContext reduction : ctx.reduction()) {
+			if (reduction.ID(1).getText().equals(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Closes the scope for the given block. An empty block is its own
+	 * flow graph entry.
+	 */
+	@Override
+	public void exitBlock(BlockContext ctx) {
+		setEntry(ctx, ctx.stat().isEmpty() ? ctx : entry(ctx.stat(0)));
 		symbolTable.closeScope();
 	}
 
@@ -313,6 +537,14 @@ public class PP07Checker extends GrammarBaseListener {
 		setType(ctx, Type.VOID);
 	}
 
+	/**
+	 * Setting type to CHAN
+	 */
+	@Override
+	public void exitChanType(ChanTypeContext ctx) {
+		setType(ctx, Type.CHAN);
+	}
+
 	/**
 	 * Checks whether this function call matches arguments with the
 	 * function it calls. Sets the type of this expression to the
@@ -321,6 +553,9 @@ public class PP07Checker extends GrammarBaseListener {
 	@Override
 	public void exitFuncCall(FuncCallContext ctx) {
 		String name = ctx.ID().getText();
+		if (atomic != null) {
+			atomicCalls.add(name);
+		}
 		Function function = functions.getFunction(name);
 		if (functions.hasFunction(name)) {
 			if (ctx.expr().size() == function
@@ -344,7 +579,7 @@ public class PP07Checker extends GrammarBaseListener {
 						+ "Expected: " + function.getArgumentCount()
 						+ " Actual: " + ctx.expr().size());
 			}
-			setEntry(ctx, entry(function.getContext()));
+			setEntry(ctx, ctx.expr().isEmpty() ? ctx : entry(ctx.expr(0)));
 		} else {
 			addError("Function " + ctx.ID().getText() + " not defined");
 		}
@@ -365,13 +600,44 @@ public class PP07Checker extends GrammarBaseListener {
 		setEntry(ctx, ctx);
 	}
 	
+	/**
+	 * Checks that a channel with the given name is declared. Sets the
+	 * type of the expression to INT.
+	 */
+	@Override
+	public void exitReceiveExpr(ReceiveExprContext ctx) {
+		checkChannel(ctx.ID().getText());
+		setType(ctx, Type.INT);
+		setEntry(ctx, ctx);
+	}
+	
+	/**
+	 * Checks that a channel with the given name is declared and that the
+	 * value sent is an integer.
+	 */
+	@Override
+	public void exitSendStat(SendStatContext ctx) {
+		checkChannel(ctx.ID().getText());
+		checkType(ctx.expr(), Type.INT);
+		setEntry(ctx, ctx.expr());
+	}
+	
+	/**
+	 * Checks that the given name is a declared channel.
+	 */
+	private void checkChannel(String id) {
+		if (symbolTable.type(id) != Type.CHAN) {
+			addError("Channel " + id + " not declared");
+		}
+	}
+	
 	/**
 	 * Checks the existence of a lock with the given name. Sets the
 	 * type of the expression to BOOL.
 	 */
 	@Override
 	public void exitLockedExpr(LockedExprContext ctx) {
-		if (!locks.releaseLock(ctx.ID().getText())) {
+		if (!locks.releaseLock(ctx.ID().getText()) && !locks.hasRwLock(ctx.ID().getText())) {
 			addError("Run statement with ID " + ctx.ID().getText()+ " not declared");
 		}
 		setType(ctx, Type.BOOL);
@@ -383,7 +649,7 @@ public class PP07Checker extends GrammarBaseListener {
 	 */
 	@Override
 	public void exitPlusExpr(PlusExprContext ctx) {
-		if (!compareType(ctx.expr(0), Type.INT) && compareType(ctx.expr(1), Type.INT)) {
+		if (!(compareType(ctx.expr(0), Type.INT) && compareType(ctx.expr(1), Type.INT))) {
 			addError("Operation \"" + ctx.plusOp().getText() + "\" is not defined for operands " 
 					+ getType(ctx.expr(0)).toString() + " and " + getType(ctx.expr(1)).toString());
 		}
@@ -396,7 +662,7 @@ public class PP07Checker extends GrammarBaseListener {
 	 */
 	@Override
 	public void exitMultExpr(MultExprContext ctx) {
-		if (compareType(ctx.expr(0), Type.INT) && compareType(ctx.expr(1), Type.INT)) {
+		if (!(compareType(ctx.expr(0), Type.INT) && compareType(ctx.expr(1), Type.INT))) {
 			addError("Operation \"" + ctx.multOp().getText() + "\" is not defined for operands " 
 					+ getType(ctx.expr(0)).toString() + " and " + getType(ctx.expr(1)).toString());
 		}
@@ -484,6 +750,9 @@ public class PP07Checker extends GrammarBaseListener {
 		if (type == null) {
 			addError("ID: " + id + " is not defined.");
 		} else {
+			if (type == Type.CHAN) {
+				addError("Channel " + id + " can only be used with send and receive");
+			}
 			setType(ctx, type);
 			setEntry(ctx, ctx);
 		}
@@ -614,6 +883,7 @@ public class PP07Checker extends GrammarBaseListener {
 		if (ctx.getToken(GrammarParser.BOOL, 0) != null) return Type.BOOL;
 		if (ctx.getToken(GrammarParser.INT, 0) != null) return Type.INT;
 		if (ctx.getToken(GrammarParser.VOID, 0) != null) return Type.VOID;
+		if (ctx.getToken(GrammarParser.CHAN, 0) != null) return Type.CHAN;
 		return null;
 	}
 
@@ -39,8 +39,11 @@ public class PP07Compiler {
 			try {
 				ParseTree tree = parse(new ANTLRInputStream(new FileReader(new File(BASE_DIR + args[0] + EXT))));
 
-				new PP07Checker().check(tree);
-				new PP07Generator().generate(tree);
+				Result result = new PP07Checker().check(tree);
+				PP07Generator generator = new PP07Generator();
+				generator.generate(tree, result);
+				generator.getPeephole().printReport();
+				generator.getLockElision().printReport();
 			} catch (ParseException | IOException e) {
 				e.printStackTrace();
 			}
@@ -3,11 +3,14 @@ package grammar;
 import java.util.ArrayList;
 import java.util.List;
 
+import grammar.GrammarParser.BarrierStatContext;
 import grammar.GrammarParser.FuncStatContext;
 import grammar.GrammarParser.LockStatContext;
+import grammar.GrammarParser.RlockStatContext;
 import grammar.GrammarParser.RunStatContext;
 import grammar.GrammarParser.TypeContext;
 import grammar.GrammarParser.UnlockStatContext;
+import grammar.GrammarParser.WlockStatContext;
 
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
@@ -84,6 +87,30 @@ public class PP07FunctionWalker extends GrammarBaseListener {
 		locks.acquireLock(ctx.ID().getText());
 	}
 	
+	/**
+	 * Adds a reader-writer lock locked for reading.
+	 */
+	@Override
+	public void exitRlockStat(RlockStatContext ctx) {
+		locks.addRwLock(ctx.ID().getText());
+	}
+	
+	/**
+	 * Adds a reader-writer lock locked for writing.
+	 */
+	@Override
+	public void exitWlockStat(WlockStatContext ctx) {
+		locks.addRwLock(ctx.ID().getText());
+	}
+	
+	/**
+	 * Adds a barrier with the thread count of its first use.
+	 */
+	@Override
+	public void exitBarrierStat(BarrierStatContext ctx) {
+		locks.addBarrier(ctx.ID().getText(), Integer.parseInt(ctx.NUM().getText()));
+	}
+	
 	/**
 	 * Gets the type of type nodes. These do not have an enter- or exit method,
 	 * so they are defined here.
@@ -94,6 +121,7 @@ public class PP07FunctionWalker extends GrammarBaseListener {
 		if (ctx.getToken(GrammarParser.BOOL, 0) != null) return Type.BOOL;
 		if (ctx.getToken(GrammarParser.INT, 0) != null) return Type.INT;
 		if (ctx.getToken(GrammarParser.VOID, 0) != null) return Type.VOID;
+		if (ctx.getToken(GrammarParser.CHAN, 0) != null) return Type.CHAN;
 		return null;
 	}
 	
@@ -1,84 +1,468 @@
 package grammar;
 
 
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.misc.NotNull;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 import sprockell.Label;
 import sprockell.OpCode;
 import sprockell.Register.Indexes;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-/* CORE ARP
-return value			-- global
-return value boolean	-- global
-arp						-- global
-*return address			-- local (global)
-start address			-- global
-thread lock				-- global
+/* CALLING CONVENTION
+arguments 1-5			-- RegA..RegE
+arguments 6-			-- local stack
+return address			-- local stack, below the arguments
+return value			-- RegA
+live registers			-- local stack, saved by the caller
+parameters, variables	-- local memory, one area per function
+
+RUN QUEUE
+descriptor				-- entry address, result slot, arguments
+thread entry			-- descriptor arguments in RegE
+
+LOCAL MEMORY
+private globals			-- from address 0
+parameters, variables	-- after the globals
+stack					-- down from dataMemSize, stackSize words above the variables
  */
 
 public class PP07Generator extends GrammarBaseVisitor<Op> {
 	private final Value DEFAULT_VALUE = new Value(0);
 	private final Integer STD_IO = 0x1000000;
+	/**
+	 * Local memory address of the globals that only one thread uses. The
+	 * local variables follow the globals, and the stack grows down from the
+	 * end of local memory towards them, see {@link #getDataMemSize()}.
+	 */
+	private final Integer LOCAL_GLOBALS = 0;
+	/**
+	 * Local memory size of the default Sprockell SystemConfig.
+	 */
+	private final int DATA_MEM_SIZE = 128;
+	/**
+	 * Function the main thread calls after the top level statements.
+	 */
+	private final String MAIN = "main";
+	/**
+	 * Reply latency parameters of the target, bufferDelay and multiplier
+	 * of the default Sprockell SystemConfig.
+	 */
+	private final int BUFFER_DELAY = 4;
+	private final int MULTIPLIER = 2;
+	/**
+	 * Default estimated size, in instructions, up to which function bodies
+	 * are inlined.
+	 */
+	public static final int DEFAULT_INLINE_BUDGET = 24;
+	/**
+	 * Default number of cores of programs that start threads.
+	 */
+	public static final int DEFAULT_CORES = 4;
+	/**
+	 * Default estimated size of the statements over which critical sections
+	 * are extended to merge them.
+	 */
+	public static final int DEFAULT_COARSENING_BUDGET = 16;
+	/**
+	 * Default number of values a channel holds.
+	 */
+	public static final int DEFAULT_CHANNEL_CAPACITY = 8;
+	/**
+	 * Default number of local memory words kept free for the stack.
+	 */
+	public static final int DEFAULT_STACK_SIZE = 1024;
+	/**
+	 * Iterations of the delay loop of a core that found the run queue empty.
+	 */
+	private final int IDLE_DELAY = 8;
+	/**
+	 * First and largest number of iterations of the delay loop between two
+	 * polls of a shared word, doubled after every poll that fails.
+	 */
+	private final int MIN_BACKOFF = 4;
+	private final int MAX_BACKOFF = 64;
+
+	/**
+	 * Registers a lock statement needs: a delay and the replies.
+	 */
+	private final int LOCK_NEED = 2;
+
+	/**
+	 * Registers a barrier statement needs: the sense, a delay and the
+	 * replies.
+	 */
+	private final int BARRIER_NEED = 3;
+
+	/**
+	 * Registers a send statement needs: the value, the tail, a delay and
+	 * the replies.
+	 */
+	private final int SEND_NEED = 4;
 	private final Type type = Type.INT;
-	private BufferedWriter writer;
-	private BufferedReader reader;
 	private SymbolTable symbolTable;
-	private Map<String, Label> labels;
-	private int lineNum;
+	private Result checkResult;
+	private RegisterAllocator registers;
+	private ConstantFolder constants;
+	private SharedGlobals sharedGlobals;
+	private CallGraph callGraph;
+	private Map<String, Label> functionLabels;
+	/**
+	 * Thread entries of the functions started by run statements, and the
+	 * run queue they are started through, null if there are no run
+	 * statements.
+	 */
+	private Map<String, Label> threadLabels;
+	private RunQueue queue;
+	/**
+	 * Shared memory words of the locks, after the shared globals, and
+	 * whether they are ticket locks instead of test-and-set locks.
+	 */
+	private LockTable locks;
+	private boolean ticketLocks = false;
+	private LockElision lockElision;
+	private LockCoarsening lockCoarsening;
+	private int coarseningBudget = DEFAULT_COARSENING_BUDGET;
+	/**
+	 * Shared memory words of the channels, after the locks.
+	 */
+	private ChannelTable channels;
+	private int channelCapacity = DEFAULT_CHANNEL_CAPACITY;
+	private int stackSize = DEFAULT_STACK_SIZE;
+	/**
+	 * Shared memory words of the parfor statements, after the channels.
+	 */
+	private ParforTable parfors;
+	private int parforID = 0;
+	/**
+	 * Lock words of the atomic blocks, after the parfor statements.
+	 */
+	private AtomicTable atomics;
+	private Label dispatchLabel;
+	private int cores = DEFAULT_CORES;
+	/**
+	 * Function of which the body is being generated, null at the top level.
+	 */
+	private String function;
+	/**
+	 * Parameters of the current leaf function that stay in the register
+	 * they were passed in.
+	 */
+	private Map<String, Indexes> pinned;
+	/**
+	 * Addresses of the parameters of the current function, and the start of
+	 * its body, which self-recursive tail calls jump back to.
+	 */
+	private List<String> parameters;
+	private Op body;
+	/**
+	 * Local memory address of the first local variable.
+	 */
+	private int localBase;
+	/**
+	 * End of the local variables declared so far, relative to localBase.
+	 */
+	private int localEnd;
+	private Set<String> sharedAddresses;
+	private String firstGlobal;
+	private ParseTreeProperty<String> hoisted;
+	private int hoistID = 0;
+	private Indexes result;
+	private List<Op> program;
 	private int labelID = 0;
-	private String endProgLabel;
+	private Label endProgLabel;
+	private PeepholeOptimizer peephole = new PeepholeOptimizer();
+	private int inlineBudget = DEFAULT_INLINE_BUDGET;
+	/**
+	 * End of the function body being inlined and the register its return
+	 * value goes to, null outside inlined bodies.
+	 */
+	private Label inlineEnd;
+	private Indexes inlineResult;
 
-	public File generate(ParseTree tree) {
+	public File generate(ParseTree tree, Result checkResult) {
 		this.symbolTable = new SymbolTable();
-		this.labels = new HashMap<>();
-		this.lineNum = 0;
+		this.checkResult = checkResult;
+		this.constants = new ConstantFolder(checkResult);
+		this.registers = new RegisterAllocator(constants);
+		this.hoisted = new ParseTreeProperty<>();
+		this.sharedGlobals = new SharedGlobals();
+		this.sharedGlobals.analyse(tree);
+		this.callGraph = new CallGraph();
+		this.callGraph.analyse(tree);
+		this.functionLabels = new HashMap<>();
+		this.function = null;
+		this.pinned = new HashMap<>();
+		this.inlineEnd = null;
+		this.inlineResult = null;
+		this.localBase = LOCAL_GLOBALS + sharedGlobals.getGlobalCount() * TypeSize.WORD;
+		this.localEnd = 0;
+		this.firstGlobal = null;
+		this.sharedAddresses = new HashSet<>();
+		this.hoistID = 0;
+		this.program = new ArrayList<>();
 		this.labelID = 0;
-		this.endProgLabel = getNewLabelID();
-		File temp = new File("temp.hs");
+		this.endProgLabel = getNewLabel();
+		this.threadLabels = new HashMap<>();
+		for (GrammarParser.FuncStatContext function : callGraph.getFunctions()) {
+			functionLabels.put(function.ID(0).getText(), getNewLabel());
+			if (callGraph.isThread(function.ID(0).getText())) {
+				threadLabels.put(function.ID(0).getText(), getNewLabel());
+			}
+		}
+		this.lockElision = new LockElision(sharedGlobals, callGraph);
+		this.lockElision.analyse((GrammarParser.ProgramContext) tree);
+		this.lockCoarsening = new LockCoarsening(sharedGlobals, lockElision, constants, coarseningBudget);
+		this.lockCoarsening.analyse(tree);
+		this.locks = new LockTable(ticketLocks);
+		this.locks.analyse(tree, sharedGlobals.getGlobalCount() * TypeSize.WORD);
+		this.channels = new ChannelTable(channelCapacity);
+		this.channels.analyse(tree, locks.getEnd());
+		this.parfors = new ParforTable();
+		this.parfors.analyse(tree, channels.getEnd());
+		this.parforID = 0;
+		this.atomics = new AtomicTable(sharedGlobals, callGraph);
+		this.atomics.analyse(tree, parfors.getEnd());
+		this.queue = callGraph.getRuns().isEmpty() && parfors.getLoops().isEmpty() ? null
+				: new RunQueue(atomics.getEnd(), callGraph.getRuns());
 		File file = new File("sprockell/src/program.hs");
-		try {
-			temp.createNewFile();
-			writer = new BufferedWriter(new FileWriter(temp));
-			generateHeader();
-			tree.accept(this);
-			generateFooter();
-			writer.flush();
-			writer.close();
-			writer = new BufferedWriter(new FileWriter(file));
-			file.createNewFile();
-			reader = new BufferedReader(new FileReader(temp));
-			generateLabels();
-			reader.close();
-			writer.flush();
-			writer.close();
+		if (queue != null) {
+			dispatchLabel = getNewLabel();
+			emit(OpCode.Branch, dispatchLabel, Indexes.SPID.toString()); // every core but the first
+		}
+		tree.accept(this);
+		if (queue != null) {
+			generateDispatcher();
+		}
+		generateFooter();
+		for (GrammarParser.FuncStatContext function : callGraph.getFunctions()) {
+			generateFunction(function);
+		}
+		program = new SharedMemoryOptimizer(sharedAddresses).optimize(program);
+		program = peephole.optimize(program);
+		program = new ReadScheduler(BUFFER_DELAY, MULTIPLIER, sharedAddresses).schedule(program);
+		resolveLabels();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			generateHeader(writer);
+			generateProgram(writer);
+			generateMain(writer);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-
 		return file;
 	}
 
-	private void generateLabels() throws IOException {
-		String line;
-		while ((line = reader.readLine()) != null) {
-			int first = line.indexOf("#temp#");
-			int second = line.lastIndexOf("#temp#") + 6;
-			if (first >= 0) {
-				line = line.replaceAll("#temp#(.*?)#temp#", labels.get(line.substring(first, second)).getLine());
+	/**
+	 * Returns the instructions of the last generated program, with their
+	 * labels resolved.
+	 */
+	public List<Op> getProgram() {
+		return program;
+	}
+
+	/**
+	 * Returns the peephole optimizer run over the generated instructions.
+	 */
+	public PeepholeOptimizer getPeephole() {
+		return peephole;
+	}
+
+	/**
+	 * Sets the peephole optimizer, e.g. to enable only some of its rules.
+	 */
+	public void setPeephole(PeepholeOptimizer peephole) {
+		this.peephole = peephole;
+	}
+
+	/**
+	 * Returns the estimated size, in instructions, up to which function
+	 * bodies are inlined.
+	 */
+	public int getInlineBudget() {
+		return inlineBudget;
+	}
+
+	/**
+	 * Sets the estimated size, in instructions, up to which function bodies
+	 * are inlined at their call sites. Functions called from one place only
+	 * are inlined whatever their size; 0 disables inlining.
+	 */
+	public void setInlineBudget(int inlineBudget) {
+		this.inlineBudget = inlineBudget;
+	}
+
+	/**
+	 * Returns the number of cores of programs that start threads.
+	 */
+	public int getCores() {
+		return cores;
+	}
+
+	/**
+	 * Sets the number of cores of programs that start threads. Programs
+	 * without run or parfor statements always run on one core.
+	 */
+	public void setCores(int cores) {
+		this.cores = cores;
+	}
+
+	/**
+	 * Returns the number of cores the last generated program runs on, the
+	 * coreCount of its SystemConfig.
+	 */
+	public int getCoreCount() {
+		return queue == null ? 1 : cores;
+	}
+
+	/**
+	 * Returns the address of the given global variable of the last
+	 * generated program: in shared memory if more than one thread uses it,
+	 * in local memory otherwise.
+	 */
+	public int getGlobalAddress(String id) {
+		return sharedGlobals.isShared(id) ? symbolTable.offset(id) : LOCAL_GLOBALS + symbolTable.offset(id);
+	}
+
+	/**
+	 * Returns the run queue of the last generated program, null if it
+	 * starts no threads.
+	 */
+	public RunQueue getRunQueue() {
+		return queue;
+	}
+
+	/**
+	 * Returns the shared memory words of the locks and barriers of the last
+	 * generated program.
+	 */
+	public LockTable getLockTable() {
+		return locks;
+	}
+
+	/**
+	 * Returns the shared memory words of the channels of the last generated
+	 * program.
+	 */
+	public ChannelTable getChannelTable() {
+		return channels;
+	}
+
+	/**
+	 * Returns the lock elision analysis of the last generated program.
+	 */
+	public LockElision getLockElision() {
+		return lockElision;
+	}
+
+	/**
+	 * Returns the estimated size of the statements over which critical
+	 * sections are extended to merge them.
+	 */
+	public int getCoarseningBudget() {
+		return coarseningBudget;
+	}
+
+	/**
+	 * Sets the estimated size, in statements and expressions, of the
+	 * statements between two critical sections on the same lock, or of a
+	 * loop body, over which the critical sections are merged; 0 disables
+	 * lock coarsening.
+	 */
+	public void setCoarseningBudget(int coarseningBudget) {
+		this.coarseningBudget = coarseningBudget;
+	}
+
+	/**
+	 * Returns the number of values a channel holds.
+	 */
+	public int getChannelCapacity() {
+		return channelCapacity;
+	}
+
+	/**
+	 * Sets the number of values a channel holds before a send has to wait
+	 * for a receive.
+	 */
+	public void setChannelCapacity(int channelCapacity) {
+		this.channelCapacity = channelCapacity;
+	}
+
+	/**
+	 * Whether lock statements use FIFO ticket locks instead of
+	 * test-and-set locks.
+	 */
+	public boolean getTicketLocks() {
+		return ticketLocks;
+	}
+
+	/**
+	 * Sets whether lock statements use ticket locks, which serve waiting
+	 * threads in the order they arrived, instead of test-and-set locks,
+	 * which are cheaper without contention but not fair.
+	 */
+	public void setTicketLocks(boolean ticketLocks) {
+		this.ticketLocks = ticketLocks;
+	}
+
+	/**
+	 * Returns the number of local memory words kept free for the stack.
+	 */
+	public int getStackSize() {
+		return stackSize;
+	}
+
+	/**
+	 * Sets the number of local memory words kept free for the stack, above
+	 * the globals and local variables. Deeper calls, e.g. a recursion that
+	 * is not a tail call, would overwrite the variables.
+	 */
+	public void setStackSize(int stackSize) {
+		this.stackSize = stackSize;
+	}
+
+	/**
+	 * Returns the local memory size of the last generated program: the
+	 * globals and local variables from address 0, followed by the stack,
+	 * which grows down from the end. It is at least the default size, and
+	 * is set in the SystemConfig of the program.
+	 */
+	public int getDataMemSize() {
+		return Math.max(DATA_MEM_SIZE, getDataEnd() + stackSize);
+	}
+
+	/**
+	 * Returns the first local memory address after the variables.
+	 */
+	private int getDataEnd() {
+		return localBase + localEnd;
+	}
+
+	/**
+	 * Backpatches all labels in one pass over the instruction buffer: a label
+	 * gets the line number of the instruction it is attached to.
+	 */
+	private void resolveLabels() {
+		for (int i = 0; i < program.size(); i++) {
+			Label label = program.get(i).getLabel();
+			if (label != null) {
+				label.addLineNum(i);
 			}
-			writer.write(line);
-			writer.newLine();
 		}
 	}
 
-
-	private void generateHeader() throws IOException {
+	private void generateHeader(BufferedWriter writer) throws IOException {
 		String[] header = new String[]{
+				"-- local memory: variables at 0.." + (getDataEnd() - 1) + ", stack from " + getDataMemSize()
+						+ " down to " + getDataEnd() + " (dataMemSize " + getDataMemSize() + ")",
 				"import Sprockell.System",
 				"prog :: [Instruction]",
 				"prog = ["
@@ -86,68 +470,340 @@ public class PP07Generator extends GrammarBaseVisitor<Op> {
 		for (String s : header) {
 			writer.write(s);
 			writer.newLine();
-//			lineNum++;
 		}
 	}
 
-	private void generateFooter() throws IOException {
-		String[] footer = new String[]{
-				"\tRead (Addr 0) ,",
-				"\tReceive RegA ,",
-				"\tWrite RegA stdio ,",
-				"\tRead (Addr 0x0) ,",
-				"\tReceive RegA ,",
-				"\tEndProg",
+	private void generateProgram(BufferedWriter writer) throws IOException {
+		for (int i = 0; i < program.size(); i++) {
+			writer.write("\t" + program.get(i).toString());
+			if (i < program.size() - 1) {
+				writer.write(" ,");
+			}
+			writer.newLine();
+		}
+	}
+
+	private void generateFooter() {
+		if (firstGlobal == null) {
+			emit(OpCode.Read, "(Addr 0)");
+			emit(OpCode.Receive, Indexes.RegA.toString());
+		} else {
+			readGlobal(firstGlobal, Indexes.RegA);
+		}
+		emit(OpCode.Write, Indexes.RegA.toString(), "stdio");
+		emit(OpCode.Read, "(Addr 0x0)");
+		emit(OpCode.Receive, Indexes.RegA.toString());
+		emit(endProgLabel, OpCode.EndProg);
+	}
+
+	/**
+	 * Emits the dispatcher, which every core but the first runs from the
+	 * start, and the first one once the main thread has finished. It takes
+	 * the descriptor at the head of the run queue, calls the thread entry of
+	 * its function, stores the return value in the result slot of the run,
+	 * sets its completion flag and starts over. A core that finds the queue empty waits a while
+	 * before it looks again. The cores stop when the main thread has
+	 * finished, the queue is empty and no thread is running anymore, since
+	 * only running threads can add descriptors. The first core then prints
+	 * the result of the program.
+	 */
+	private void generateDispatcher() {
+		String a = Indexes.RegA.toString();
+		String b = Indexes.RegB.toString();
+		String c = Indexes.RegC.toString();
+		String e = Indexes.RegE.toString();
+		String lock = "(Addr " + queue.getLock() + ")";
+		String head = "(Addr " + queue.getHead() + ")";
+		String tail = "(Addr " + queue.getTail() + ")";
+		String running = "(Addr " + queue.getRunning() + ")";
+		String mainDone = "(Addr " + queue.getMainDone() + ")";
+		Label idleLabel = getNewLabel();
+		Label waitLabel = getNewLabel();
+		Label claimLabel = getNewLabel();
+		Label takeLabel = getNewLabel();
+		Label finishLabel = getNewLabel();
+		Label exitLabel = getNewLabel();
+
+		emit(OpCode.Const, "1", a);
+		emit(OpCode.Write, a, mainDone);
+
+		// look for a descriptor without taking the lock
+		emit(dispatchLabel, OpCode.Read, head);
+		emit(OpCode.Receive, a);
+		emit(OpCode.Read, tail);
+		emit(OpCode.Receive, b);
+		emit(OpCode.Compute, "Lt", a, b, c);
+		emit(OpCode.Branch, claimLabel, c);
+		emit(OpCode.Read, mainDone);
+		emit(OpCode.Receive, c);
+		emit(OpCode.Compute, "Equal", c, Indexes.Zero.toString(), c);
+		emit(OpCode.Branch, idleLabel, c);
+		acquire(lock, Indexes.RegD, Indexes.RegC);
+		emit(OpCode.Read, head);
+		emit(OpCode.Receive, a);
+		emit(OpCode.Read, tail);
+		emit(OpCode.Receive, b);
+		emit(OpCode.Read, running);
+		emit(OpCode.Receive, c);
+		release(lock);
+		emit(OpCode.Compute, "Equal", a, b, a);
+		emit(OpCode.Compute, "Equal", c, Indexes.Zero.toString(), c);
+		emit(OpCode.Compute, "And", a, c, c);
+		emit(OpCode.Branch, exitLabel, c);
+		emit(idleLabel, OpCode.Const, Integer.toString(IDLE_DELAY), c);
+		emit(waitLabel, OpCode.Compute, "Decr", c, Indexes.Zero.toString(), c);
+		emit(OpCode.Branch, waitLabel, c);
+		emit(OpCode.Jump, dispatchLabel);
+
+		// take the descriptor at the head, if another core did not take it first
+		acquire(claimLabel, lock, Indexes.RegD, Indexes.RegC);
+		emit(OpCode.Read, head);
+		emit(OpCode.Receive, a);
+		emit(OpCode.Read, tail);
+		emit(OpCode.Receive, b);
+		emit(OpCode.Compute, "Lt", a, b, c);
+		emit(OpCode.Branch, takeLabel, c);
+		release(lock);
+		emit(OpCode.Jump, dispatchLabel);
+		emit(takeLabel, OpCode.Compute, "Incr", a, Indexes.Zero.toString(), b);
+		emit(OpCode.Write, b, head);
+		emit(OpCode.Read, running);
+		emit(OpCode.Receive, b);
+		emit(OpCode.Compute, "Incr", b, Indexes.Zero.toString(), b);
+		emit(OpCode.Write, b, running);
+		release(lock);
+
+		// call the thread entry with the arguments in RegE, the result slot under the return address
+		emit(OpCode.Const, Integer.toString(queue.getDescriptorSize()), b);
+		emit(OpCode.Compute, "Mul", a, b, e);
+		emit(OpCode.Const, Integer.toString(queue.getBase()), b);
+		emit(OpCode.Compute, "Add", e, b, e);
+		emit(OpCode.Read, "(Deref " + e + ")");
+		emit(OpCode.Receive, a);
+		emit(OpCode.Compute, "Incr", e, Indexes.Zero.toString(), e);
+		emit(OpCode.Read, "(Deref " + e + ")");
+		emit(OpCode.Receive, b);
+		emit(OpCode.Push, b);
+		emit(new Op(null, OpCode.Const, finishLabel, b));
+		emit(OpCode.Push, b);
+		emit(OpCode.Compute, "Incr", e, Indexes.Zero.toString(), e);
+		emit(OpCode.Jump, "(Ind " + a + ")");
+		emit(finishLabel, OpCode.Pop, b);
+		emit(OpCode.Write, a, "(Deref " + b + ")");
+		emit(OpCode.Compute, "Incr", b, Indexes.Zero.toString(), b);
+		emit(OpCode.Const, "1", a);
+		emit(OpCode.Write, a, "(Deref " + b + ")");
+		acquire(lock, Indexes.RegD, Indexes.RegC);
+		emit(OpCode.Read, running);
+		emit(OpCode.Receive, b);
+		emit(OpCode.Compute, "Decr", b, Indexes.Zero.toString(), b);
+		emit(OpCode.Write, b, running);
+		release(lock);
+		emit(OpCode.Jump, dispatchLabel);
+
+		emit(new Op(exitLabel, OpCode.Branch, endProgLabel, Indexes.SPID.toString()));
+	}
+
+	private void generateMain(BufferedWriter writer) throws IOException {
+		String[] main = new String[]{
 				"\t]",
-				"main = run 1 prog >> putChar '\\n'"
+				"config :: SystemConfig",
+				"config = defaultConfig {coreCount = " + getCoreCount() + ", dataMemSize = "
+						+ getDataMemSize() + "}",
+				"main = do",
+				"\tseed <- pickSeed",
+				"\tsimulate config (const \"\") (initSystemState config prog seed) >> putChar '\\n'"
 		};
-		for (String s : footer) {
-			if (s.equals("\tEndProg")) {
-				labels.put(endProgLabel, new Label(endProgLabel, lineNum));
-			}
+		for (String s : main) {
 			writer.write(s);
 			writer.newLine();
-			lineNum++;
 		}
 	}
 
 	@Override
 	public Op visitProgram(@NotNull GrammarParser.ProgramContext ctx) {
-		ctx.stat().forEach(this::visit);
+		symbolTable.openScope(); // holds the hidden variables of top level loops
+		visitStats(ctx.stat());
+		if (callGraph.hasFunction(MAIN)) {
+			registers.free(invoke(MAIN, new ArrayList<>()));
+		}
+		symbolTable.closeScope();
 		return null;
 	}
 
+	/**
+	 * Emits the body of a function, after the main program. Every function
+	 * has its own area in local memory for its parameters and variables, so
+	 * a call sets up no frame: the arguments come in RegA..RegE, the others
+	 * on the stack on top of the return address, and are stored in that
+	 * area. A leaf function keeps its parameters in the argument registers
+	 * if the registers that are left suffice for its expressions.
+	 */
+	private void generateFunction(GrammarParser.FuncStatContext ctx) {
+		function = ctx.ID(0).getText();
+		symbolTable.openScope(localEnd);
+		int count = ctx.ID().size() - 1;
+		boolean pin = canPin(ctx);
+		if (threadLabels.containsKey(function)) {
+			generateThreadEntry(count);
+		}
+		emit(functionLabels.get(function), OpCode.Nop);
+		parameters = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String param = ctx.ID(i + 1).getText();
+			if (pin) {
+				registers.allocate(RegisterAllocator.REGISTERS[i]);
+				pinned.put(param, RegisterAllocator.REGISTERS[i]);
+			} else {
+				addLocal(param);
+				parameters.add(localAddress(param));
+				if (i < RegisterAllocator.REGISTERS.length) {
+					emit(OpCode.Store, RegisterAllocator.REGISTERS[i].toString(), localAddress(param));
+				}
+			}
+		}
+		for (int i = count - 1; i >= RegisterAllocator.REGISTERS.length; i--) {
+			emit(OpCode.Pop, Indexes.RegA.toString());
+			emit(OpCode.Store, Indexes.RegA.toString(), localAddress(ctx.ID(i + 1).getText()));
+		}
+		body = new Op(getNewLabel(), OpCode.Nop);
+		emit(body);
+		visit(ctx.block());
+		emitReturn();
+		if (!isTarget(body.getLabel())) {
+			body.setLabel(null);
+		}
+
+		for (Indexes reg : pinned.values()) {
+			registers.free(reg);
+		}
+		pinned.clear();
+		symbolTable.closeScope();
+		function = null;
+	}
+
+	/**
+	 * Emits the thread entry of the current function, through which the
+	 * dispatcher calls it. The arguments are read from the descriptor that
+	 * RegE points to and passed as in any other call, after which the entry
+	 * falls through into the function.
+	 * @param count number of parameters of the function
+	 */
+	private void generateThreadEntry(int count) {
+		String e = Indexes.RegE.toString();
+		String a = Indexes.RegA.toString();
+		emit(threadLabels.get(function), OpCode.Nop);
+		for (int i = RegisterAllocator.REGISTERS.length; i < count; i++) {
+			emit(OpCode.Const, Integer.toString(i), a);
+			emit(OpCode.Compute, "Add", e, a, a);
+			emit(OpCode.Read, "(Deref " + a + ")");
+			emit(OpCode.Receive, a);
+			emit(OpCode.Push, a);
+		}
+		int registerCount = Math.min(count, RegisterAllocator.REGISTERS.length);
+		for (int i = 0; i < registerCount; i++) {
+			emit(OpCode.Read, "(Deref " + e + ")");
+			emit(OpCode.Receive, RegisterAllocator.REGISTERS[i].toString()); // RegE last
+			if (i + 1 < registerCount) {
+				emit(OpCode.Compute, "Incr", e, Indexes.Zero.toString(), e);
+			}
+		}
+	}
+
+	/**
+	 * Whether the parameters of a function can stay in their registers: it
+	 * is a leaf function, all parameters come in registers, none of them is
+	 * shadowed and the registers that are left suffice for every expression.
+	 */
+	private boolean canPin(GrammarParser.FuncStatContext ctx) {
+		int count = ctx.ID().size() - 1;
+		if (!callGraph.isLeaf(ctx.ID(0).getText()) || count > RegisterAllocator.REGISTERS.length) {
+			return false;
+		}
+		Set<String> params = new HashSet<>();
+		for (int i = 1; i <= count; i++) {
+			params.add(ctx.ID(i).getText());
+		}
+		return !declares(ctx.block(), params) && count + maxNeed(ctx.block()) <= RegisterAllocator.REGISTERS.length;
+	}
+
+	/**
+	 * Whether one of the given variables is declared in the given subtree.
+	 */
+	private boolean declares(ParseTree node, Set<String> ids) {
+		if (node instanceof GrammarParser.DeclStatContext
+				&& ids.contains(((GrammarParser.DeclStatContext) node).ID().getText())) {
+			return true;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (declares(node.getChild(i), ids)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the largest number of registers a statement in the given
+	 * subtree needs, at least one. Lock statements need two for waiting.
+	 */
+	private int maxNeed(ParseTree node) {
+		if (node instanceof GrammarParser.ExprContext) {
+			return registers.need(node);
+		} else if (node instanceof GrammarParser.LockStatContext || node instanceof GrammarParser.UnlockStatContext
+				|| node instanceof GrammarParser.RlockStatContext || node instanceof GrammarParser.RunlockStatContext
+				|| node instanceof GrammarParser.WlockStatContext) {
+			return LOCK_NEED;
+		} else if (node instanceof GrammarParser.BarrierStatContext) {
+			return BARRIER_NEED;
+		} else if (node instanceof GrammarParser.ParforStatContext) {
+			return RegisterAllocator.REGISTERS.length; // only at statement level
+		}
+		int need = node instanceof GrammarParser.SendStatContext ? SEND_NEED
+				: node instanceof GrammarParser.AtomicStatContext ? LOCK_NEED : 1;
+		for (int i = 0; i < node.getChildCount(); i++) {
+			need = Math.max(need, maxNeed(node.getChild(i)));
+		}
+		return need;
+	}
+
 	@Override
 	public Op visitDeclStat(@NotNull GrammarParser.DeclStatContext ctx) {
+		if (ctx.type() instanceof GrammarParser.ChanTypeContext) {
+			return null; // lives in the channel table
+		}
 		String id = ctx.ID().getText();
 		Value value = DEFAULT_VALUE;
+		Indexes reg;
 		if (ctx.ASS() == null) {
-			emit(OpCode.Const, value.toString(), Indexes.RegA.toString());
+			reg = registers.allocate();
+			emit(OpCode.Const, value.toString(), reg.toString());
 		} else {
-			visit(ctx.expr());
-			emit(OpCode.Pop, Indexes.RegA.toString());
+			reg = evaluate(ctx.expr());
 		}
 
+		declare(ctx);
 		if (ctx.GLOBAL() == null) {
-			symbolTable.add(id, type);
-			emit(OpCode.Store, Indexes.RegA.toString(), "(Addr " + (symbolTable.arp(id) + symbolTable.offset(id)) + ")");
+			emit(OpCode.Store, reg.toString(), localAddress(id));
 		} else {
-			symbolTable.addGlobal(id, type);
-			emit(OpCode.Write, Indexes.RegA.toString(), "(Addr " + symbolTable.offset(id) + ")");
+			writeGlobal(reg, id);
 		}
+		registers.free(reg);
 		return null;
 	}
 
 	@Override
 	public Op visitAssStat(@NotNull GrammarParser.AssStatContext ctx) {
 		String id = ctx.ID().getText();
-		visit(ctx.expr());
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		if (symbolTable.isGlobal(id)) {
-			emit(OpCode.Write, Indexes.RegA.toString(), "(Addr " + symbolTable.offset(id) + ")");
+		Indexes reg = evaluate(ctx.expr());
+		if (pinned.containsKey(id)) {
+			emit(OpCode.Compute, "Add", reg.toString(), Indexes.Zero.toString(), pinned.get(id).toString());
+		} else if (symbolTable.isGlobal(id)) {
+			writeGlobal(reg, id);
 		} else {
-			emit(OpCode.Store, Indexes.RegA.toString(), "(Addr " + (symbolTable.arp(id) + symbolTable.offset(id)) + ")");
+			emit(OpCode.Store, reg.toString(), localAddress(id));
 		}
+		registers.free(reg);
 		return null;
 	}
 
@@ -159,24 +815,35 @@ public class PP07Generator extends GrammarBaseVisitor<Op> {
 
 	@Override
 	public Op visitIfStat(@NotNull GrammarParser.IfStatContext ctx) {
-		visit(ctx.expr());
-		emit(OpCode.Pop, Indexes.RegA.toString()); // value to compare
+		Value condition = condition(ctx, ctx.expr());
+		boolean hasElse = ctx.ELSE() != null && !ctx.block(1).stat().isEmpty();
 
-		emit(OpCode.Compute, "Equal", Indexes.RegA.toString(), Indexes.Zero.toString(),
-				Indexes.RegA.toString()); // compare
+		if (condition != null) {
+			// only one of the blocks can be reached
+			if (condition.getValue() != 0) {
+				visit(ctx.block(0));
+			} else if (hasElse) {
+				visit(ctx.block(1));
+			}
+			return null;
+		}
 
-		String endLabel = getNewLabelID(); // label for jump to end
+		Label endLabel = getNewLabel(); // label for jump to end
 
-		if (ctx.ELSE() == null) {
+		if (!hasElse) {
 			// jump to end or continue
-			emit(OpCode.Branch, Indexes.RegA.toString(), "(Abs " + endLabel + ")");
+			branch(ctx.expr(), false, endLabel);
 			visit(ctx.block(0));
+		} else if (ctx.block(0).stat().isEmpty()) {
+			// only the else block has code: jump over it or continue
+			branch(ctx.expr(), true, endLabel);
+			visit(ctx.block(1));
 		} else {
-			String elseLabel = getNewLabelID(); // label for jump to else
+			Label elseLabel = getNewLabel(); // label for jump to else
 
-			emit(OpCode.Branch, Indexes.RegA.toString(), "(Abs " + elseLabel + ")");
+			branch(ctx.expr(), false, elseLabel);
 			visit(ctx.block(0));
-			emit(OpCode.Jump, "(Abs " + endLabel + ")");
+			emit(OpCode.Jump, endLabel);
 			emit(elseLabel, OpCode.Nop);
 			visit(ctx.block(1));
 		}
@@ -186,251 +853,1012 @@ public class PP07Generator extends GrammarBaseVisitor<Op> {
 
 	@Override
 	public Op visitWhileStat(@NotNull GrammarParser.WhileStatContext ctx) {
+		Value condition = condition(ctx, ctx.expr());
+		if (condition != null && condition.getValue() == 0) {
+			return null; // body is never executed
+		}
+
+		String lock = lockCoarsening.getHoisted(ctx);
+		if (lock != null) {
+			lock(lock); // the critical section of the body, once for the whole loop
+		}
+		List<GrammarParser.ExprContext> invariants = hoist(ctx); // loop preheader
+
 		// Labels
-		String beginLabel = getNewLabelID();
-		String checkLabel = getNewLabelID();
+		Label beginLabel = getNewLabel();
+		Label checkLabel = getNewLabel();
 
-		emit(OpCode.Jump, "(Abs " + checkLabel + ")"); // jump to check
-		emit(beginLabel, OpCode.Nop); // set begin label
-		visit(ctx.block()); // content of while
+		if (condition != null) {
+			// infinite loop, no check needed
+			emit(beginLabel, OpCode.Nop);
+			visit(ctx.block());
+			emit(OpCode.Jump, beginLabel);
+		} else {
+			emit(OpCode.Jump, checkLabel); // jump to check
+			emit(beginLabel, OpCode.Nop); // set begin label
+			visit(ctx.block()); // content of while
 
-		emit(checkLabel, OpCode.Nop); // set begin label
-		visit(ctx.expr()); // evaluate expression
-		emit(OpCode.Pop, Indexes.RegA.toString()); // value to compare
-		emit(OpCode.Const, "1", Indexes.RegB.toString()); // constant reg with 1
-		emit(OpCode.Compute, "Equal", Indexes.RegA.toString(), Indexes.RegB.toString(),
-				Indexes.RegA.toString()); // compare
-		emit(OpCode.Branch, Indexes.RegA.toString(), "(Abs " + beginLabel + ")"); // branch
+			emit(checkLabel, OpCode.Nop); // set check label
+			branch(ctx.expr(), true, beginLabel); // jump back while the condition holds
+		}
+		unhoist(ctx, invariants);
+		if (lock != null) {
+			unlock(lock);
+		}
+		return null;
+	}
+
+	/**
+	 * Takes the lock words of an atomic block in the order of AtomicTable,
+	 * executes the block and releases them again.
+	 */
+	@Override
+	public Op visitAtomicStat(@NotNull GrammarParser.AtomicStatContext ctx) {
+		List<Integer> words = atomics.getLocks(ctx);
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		for (int word : words) {
+			acquire("(Addr " + word + ")", delay, temp);
+		}
+		registers.free(temp);
+		registers.free(delay);
+		visit(ctx.block());
+		for (int i = words.size() - 1; i >= 0; i--) {
+			release("(Addr " + words.get(i) + ")");
+		}
 		return null;
 	}
 
+	/**
+	 * Executes the iterations of a parfor statement in chunks, together with
+	 * a helper thread per other core. The executing thread marks the
+	 * statement busy, fills in its block, see ParforTable, appends the
+	 * helpers to the run queue and then claims chunks itself, like the
+	 * helpers do, until all are claimed. It waits until all chunks are
+	 * done and takes the results of the reductions, which hold the value
+	 * of their variable before the statement combined with the partial
+	 * results of every chunk. A helper that is only started after all
+	 * chunks are claimed finishes at once, so the statement also completes
+	 * if no other core is free.
+	 */
+	@Override
+	public Op visitParforStat(@NotNull GrammarParser.ParforStatContext ctx) {
+		String lock = "(Addr " + parfors.getLock(ctx) + ")";
+		String busy = "(Addr " + parfors.getBusy(ctx) + ")";
+		List<String> captures = parfors.getCaptures(ctx);
+		List<GrammarParser.ReductionContext> reductions = ctx.reduction();
+		Label participateLabel = getNewLabel();
+		Label returnLabel = getNewLabel();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+
+		acquire(busy, delay, temp);
+		for (int i = 0; i < captures.size(); i++) {
+			if (isLocal(captures.get(i))) {
+				emit(OpCode.Load, localAddress(captures.get(i)), temp.toString());
+				emit(OpCode.Write, temp.toString(), "(Addr " + parfors.getCaptured(ctx, i) + ")");
+			}
+		}
+		for (int i = 0; i < reductions.size(); i++) {
+			emit(OpCode.Load, localAddress(reductions.get(i).ID(1).getText()), temp.toString());
+			emit(OpCode.Write, temp.toString(), "(Addr " + parfors.getPartial(ctx, i) + ")");
+		}
+		registers.free(temp);
+		registers.free(delay);
+
+		// chunks of one per core, or of the given size
+		Indexes start = evaluate(ctx.expr(0));
+		emit(OpCode.Write, start.toString(), "(Addr " + parfors.getStart(ctx) + ")");
+		Indexes count = evaluate(ctx.expr(1));
+		emit(OpCode.Write, count.toString(), "(Addr " + parfors.getLimit(ctx) + ")");
+		emit(OpCode.Compute, "Sub", count.toString(), start.toString(), count.toString());
+		emit(OpCode.Compute, "GtE", count.toString(), Indexes.Zero.toString(), start.toString());
+		emit(OpCode.Compute, "Mul", count.toString(), start.toString(), count.toString()); // no iterations if negative
+		registers.free(start);
+		Indexes size = registers.allocate();
+		temp = registers.allocate();
+		int parts = ctx.NUM() == null ? cores : Integer.parseInt(ctx.NUM().getText());
+		emit(OpCode.Const, Integer.toString(parts - 1), temp.toString());
+		emit(OpCode.Compute, "Add", count.toString(), temp.toString(), count.toString());
+		emit(OpCode.Const, Integer.toString(parts), temp.toString());
+		emit(OpCode.Compute, "Div", count.toString(), temp.toString(), size.toString()); // rounded up
+		if (ctx.NUM() == null) {
+			emit(OpCode.Write, size.toString(), "(Addr " + parfors.getSize(ctx) + ")");
+		} else {
+			emit(OpCode.Write, temp.toString(), "(Addr " + parfors.getSize(ctx) + ")");
+			emit(OpCode.Compute, "Add", size.toString(), Indexes.Zero.toString(), temp.toString());
+		}
+		registers.free(size);
+		registers.free(count);
+		Indexes chunks = temp;
+		delay = registers.allocate();
+		temp = registers.allocate();
+		acquire(lock, delay, temp);
+		emit(OpCode.Write, chunks.toString(), "(Addr " + parfors.getChunks(ctx) + ")");
+		emit(OpCode.Write, Indexes.Zero.toString(), "(Addr " + parfors.getNext(ctx) + ")");
+		emit(OpCode.Write, Indexes.Zero.toString(), "(Addr " + parfors.getDone(ctx) + ")");
+		release(lock);
+		registers.free(chunks);
+		if (cores > 1) {
+			startHelpers(ctx, participateLabel, delay, temp);
+		}
+		emit(new Op(null, OpCode.Const, returnLabel, temp.toString()));
+		emit(OpCode.Push, temp.toString());
+		registers.free(temp);
+		registers.free(delay);
+
+		emitParticipant(ctx, participateLabel);
+
+		delay = registers.allocate();
+		temp = registers.allocate();
+		chunks = registers.allocate();
+		emit(returnLabel, OpCode.Read, "(Addr " + parfors.getChunks(ctx) + ")");
+		emit(OpCode.Receive, chunks.toString());
+		await("(Addr " + parfors.getDone(ctx) + ")", "Equal", chunks, delay, temp);
+		for (int i = 0; i < reductions.size(); i++) {
+			emit(OpCode.Read, "(Addr " + parfors.getPartial(ctx, i) + ")");
+			emit(OpCode.Receive, temp.toString());
+			emit(OpCode.Store, temp.toString(), localAddress(reductions.get(i).ID(1).getText()));
+		}
+		release(busy);
+		registers.free(chunks);
+		registers.free(temp);
+		registers.free(delay);
+		return null;
+	}
+
+	/**
+	 * Appends a helper thread per other core to the run queue, of which the
+	 * descriptors have the participant code of the parfor statement as
+	 * entry and its block as result slot.
+	 */
+	private void startHelpers(GrammarParser.ParforStatContext ctx, Label participateLabel, Indexes delay,
+			Indexes temp) {
+		String lock = "(Addr " + queue.getLock() + ")";
+		Indexes address = registers.allocate();
+		acquire(lock, delay, temp);
+		emit(OpCode.Read, "(Addr " + queue.getTail() + ")");
+		emit(OpCode.Receive, delay.toString());
+		emit(OpCode.Const, Integer.toString(cores - 1), temp.toString());
+		emit(OpCode.Compute, "Add", delay.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Write, temp.toString(), "(Addr " + queue.getTail() + ")");
+		emit(OpCode.Const, Integer.toString(queue.getDescriptorSize()), temp.toString());
+		emit(OpCode.Compute, "Mul", delay.toString(), temp.toString(), address.toString());
+		emit(OpCode.Const, Integer.toString(queue.getBase()), temp.toString());
+		emit(OpCode.Compute, "Add", address.toString(), temp.toString(), address.toString());
+		for (int i = 1; i < cores; i++) {
+			emit(new Op(null, OpCode.Const, participateLabel, temp.toString()));
+			emit(OpCode.Write, temp.toString(), "(Deref " + address + ")");
+			emit(OpCode.Compute, "Incr", address.toString(), Indexes.Zero.toString(), address.toString());
+			emit(OpCode.Const, Integer.toString(parfors.getSlot(ctx)), temp.toString());
+			emit(OpCode.Write, temp.toString(), "(Deref " + address + ")");
+			if (i + 1 < cores) {
+				emit(OpCode.Const, Integer.toString(queue.getDescriptorSize() - 1), temp.toString());
+				emit(OpCode.Compute, "Add", address.toString(), temp.toString(), address.toString());
+			}
+		}
+		release(lock);
+		registers.free(address);
+	}
+
+	/**
+	 * Emits the code that claims and executes chunks of a parfor statement
+	 * until none is left and then returns to the address on top of the
+	 * stack. The values of the captured variables are copied to local
+	 * memory and the reduction variables start from the identity of their
+	 * reduction for every chunk, and are combined with the partial results
+	 * in the block when the chunk is done.
+	 */
+	private void emitParticipant(GrammarParser.ParforStatContext ctx, Label participateLabel) {
+		String lock = "(Addr " + parfors.getLock(ctx) + ")";
+		List<String> captures = parfors.getCaptures(ctx);
+		List<GrammarParser.ReductionContext> reductions = ctx.reduction();
+		Label claimedLabel = getNewLabel();
+		Label checkLabel = getNewLabel();
+		Label doneLabel = getNewLabel();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		Indexes chunk = registers.allocate();
+
+		acquire(participateLabel, lock, delay, temp);
+		emit(OpCode.Read, "(Addr " + parfors.getNext(ctx) + ")");
+		emit(OpCode.Receive, chunk.toString());
+		emit(OpCode.Read, "(Addr " + parfors.getChunks(ctx) + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Lt", chunk.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Branch, claimedLabel, temp.toString());
+		release(lock);
+		emitReturn();
+		emit(claimedLabel, OpCode.Compute, "Incr", chunk.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Write, temp.toString(), "(Addr " + parfors.getNext(ctx) + ")");
+		release(lock);
+		for (int i = 0; i < captures.size(); i++) {
+			if (isLocal(captures.get(i))) {
+				emit(OpCode.Read, "(Addr " + parfors.getCaptured(ctx, i) + ")");
+				emit(OpCode.Receive, temp.toString());
+				emit(OpCode.Store, temp.toString(), localAddress(captures.get(i)));
+			}
+		}
+		for (GrammarParser.ReductionContext reduction : reductions) {
+			emit(OpCode.Const, identity(reduction).toString(), temp.toString());
+			emit(OpCode.Store, temp.toString(), localAddress(reduction.ID(1).getText()));
+		}
+
+		// iterations from start + chunk * size up to the limit or the next chunk
+		String end = "#parfor" + parforID++; // cannot clash with an identifier
+		symbolTable.openScope();
+		addLocal(ctx.ID(0).getText());
+		addLocal(end);
+		emit(OpCode.Read, "(Addr " + parfors.getSize(ctx) + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Mul", chunk.toString(), temp.toString(), chunk.toString());
+		emit(OpCode.Read, "(Addr " + parfors.getStart(ctx) + ")");
+		emit(OpCode.Receive, delay.toString());
+		emit(OpCode.Compute, "Add", chunk.toString(), delay.toString(), chunk.toString());
+		emit(OpCode.Store, chunk.toString(), localAddress(ctx.ID(0).getText()));
+		emit(OpCode.Compute, "Add", chunk.toString(), temp.toString(), chunk.toString());
+		emit(OpCode.Read, "(Addr " + parfors.getLimit(ctx) + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Lt", chunk.toString(), temp.toString(), delay.toString());
+		emit(OpCode.Compute, "Sub", chunk.toString(), temp.toString(), chunk.toString());
+		emit(OpCode.Compute, "Mul", chunk.toString(), delay.toString(), chunk.toString());
+		emit(OpCode.Compute, "Add", chunk.toString(), temp.toString(), chunk.toString()); // the smaller one
+		emit(OpCode.Store, chunk.toString(), localAddress(end));
+		registers.free(chunk);
+		registers.free(temp);
+		registers.free(delay);
+
+		Label beginLabel = getNewLabel();
+		emit(OpCode.Jump, checkLabel);
+		emit(beginLabel, OpCode.Nop);
+		visit(ctx.block());
+		temp = registers.allocate();
+		emit(OpCode.Load, localAddress(ctx.ID(0).getText()), temp.toString());
+		emit(OpCode.Compute, "Incr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Store, temp.toString(), localAddress(ctx.ID(0).getText()));
+		registers.free(temp);
+		delay = registers.allocate();
+		temp = registers.allocate();
+		emit(checkLabel, OpCode.Load, localAddress(ctx.ID(0).getText()), delay.toString());
+		emit(OpCode.Load, localAddress(end), temp.toString());
+		emit(OpCode.Compute, "Lt", delay.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Branch, beginLabel, temp.toString());
+		symbolTable.closeScope();
+
+		// combine the partial results of the chunk
+		Indexes partial = registers.allocate();
+		acquire(doneLabel, lock, delay, temp);
+		for (int i = 0; i < reductions.size(); i++) {
+			String name = reductions.get(i).ID(0).getText();
+			emit(OpCode.Read, "(Addr " + parfors.getPartial(ctx, i) + ")");
+			emit(OpCode.Receive, partial.toString());
+			emit(OpCode.Load, localAddress(reductions.get(i).ID(1).getText()), temp.toString());
+			if (name.equals(ParforTable.SUM)) {
+				emit(OpCode.Compute, "Add", partial.toString(), temp.toString(), partial.toString());
+			} else {
+				// the partial result plus the difference if that is smaller or larger
+				emit(OpCode.Compute, name.equals(ParforTable.MIN) ? "Lt" : "Gt", temp.toString(),
+						partial.toString(), delay.toString());
+				emit(OpCode.Compute, "Sub", temp.toString(), partial.toString(), temp.toString());
+				emit(OpCode.Compute, "Mul", temp.toString(), delay.toString(), temp.toString());
+				emit(OpCode.Compute, "Add", partial.toString(), temp.toString(), partial.toString());
+			}
+			emit(OpCode.Write, partial.toString(), "(Addr " + parfors.getPartial(ctx, i) + ")");
+		}
+		emit(OpCode.Read, "(Addr " + parfors.getDone(ctx) + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Incr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Write, temp.toString(), "(Addr " + parfors.getDone(ctx) + ")");
+		release(lock);
+		emit(OpCode.Jump, participateLabel);
+		registers.free(partial);
+		registers.free(temp);
+		registers.free(delay);
+	}
+
+	/**
+	 * Returns the value a reduction variable starts from in every chunk.
+	 */
+	private Value identity(GrammarParser.ReductionContext reduction) {
+		switch (reduction.ID(0).getText()) {
+		case ParforTable.MIN:
+			return new Value(Integer.MAX_VALUE);
+		case ParforTable.MAX:
+			return new Value(Integer.MIN_VALUE);
+		default:
+			return new Value(0);
+		}
+	}
+
+	/**
+	 * Whether the given name is a local variable where it is used.
+	 */
+	private boolean isLocal(String id) {
+		return symbolTable.type(id) != null && !symbolTable.isGlobal(id);
+	}
+
 	@Override
 	public Op visitBlockStat(@NotNull GrammarParser.BlockStatContext ctx) {
 		visit(ctx.block());
 		return null;
 	}
 
+	/**
+	 * Functions are emitted after the main program, see generateFunction.
+	 */
 	@Override
 	public Op visitFuncStat(@NotNull GrammarParser.FuncStatContext ctx) {
-		// TODO: Not implemented
 		return null;
 	}
 
 	@Override
 	public Op visitExprStat(@NotNull GrammarParser.ExprStatContext ctx) {
-		visit(ctx.expr());
-		emit(OpCode.Pop, Indexes.Zero.toString());
+		registers.free(evaluate(ctx.expr()));
 		return null;
 	}
 
+	/**
+	 * Appends a descriptor of the thread to the run queue: the thread entry
+	 * of the function, the result slot of the run ID and the arguments,
+	 * which are evaluated by the starting thread. The completion flag of the
+	 * run ID is cleared first and the tail is moved last, so the descriptor
+	 * is complete before a core can take it.
+	 */
 	@Override
 	public Op visitRunStat(@NotNull GrammarParser.RunStatContext ctx) {
-		// TODO: Not implemented
+		List<GrammarParser.ExprContext> args = ctx.expr();
+		for (GrammarParser.ExprContext arg : args) {
+			Indexes reg = evaluate(arg);
+			emit(OpCode.Push, reg.toString());
+			registers.free(reg);
+		}
+		String lock = "(Addr " + queue.getLock() + ")";
+		Indexes index = registers.allocate();
+		Indexes address = registers.allocate();
+		Indexes temp = registers.allocate();
+		emit(OpCode.Write, Indexes.Zero.toString(), "(Addr " + queue.getDone(ctx.ID(0).getText()) + ")");
+		Indexes delay = registers.allocate();
+		acquire(lock, delay, temp);
+		registers.free(delay);
+		emit(OpCode.Read, "(Addr " + queue.getTail() + ")");
+		emit(OpCode.Receive, index.toString());
+		emit(OpCode.Const, Integer.toString(queue.getDescriptorSize()), temp.toString());
+		emit(OpCode.Compute, "Mul", index.toString(), temp.toString(), address.toString());
+		emit(OpCode.Const, Integer.toString(queue.getBase() + RunQueue.HEADER + args.size() - 1), temp.toString());
+		emit(OpCode.Compute, "Add", address.toString(), temp.toString(), address.toString());
+		for (int i = args.size() - 1; i >= 0; i--) {
+			emit(OpCode.Pop, temp.toString());
+			emit(OpCode.Write, temp.toString(), "(Deref " + address + ")");
+			emit(OpCode.Compute, "Decr", address.toString(), Indexes.Zero.toString(), address.toString());
+		}
+		emit(OpCode.Const, Integer.toString(queue.getSlot(ctx.ID(0).getText())), temp.toString());
+		emit(OpCode.Write, temp.toString(), "(Deref " + address + ")");
+		emit(OpCode.Compute, "Decr", address.toString(), Indexes.Zero.toString(), address.toString());
+		emit(new Op(null, OpCode.Const, threadLabels.get(ctx.ID(1).getText()), temp.toString()));
+		emit(OpCode.Write, temp.toString(), "(Deref " + address + ")");
+		emit(OpCode.Compute, "Incr", index.toString(), Indexes.Zero.toString(), index.toString());
+		emit(OpCode.Write, index.toString(), "(Addr " + queue.getTail() + ")");
+		release(lock);
+		registers.free(temp);
+		registers.free(address);
+		registers.free(index);
 		return null;
 	}
 
+	/**
+	 * Nothing is emitted for a lock that can never be contended, see
+	 * LockElision, or that is merged with another critical section, see
+	 * LockCoarsening.
+	 */
 	@Override
 	public Op visitLockStat(@NotNull GrammarParser.LockStatContext ctx) {
-		// TODO: Not implemented
+		if (!lockElision.isElided(ctx) && !lockCoarsening.isRemoved(ctx)) {
+			lock(ctx.ID().getText());
+		}
 		return null;
 	}
 
 	@Override
 	public Op visitUnlockStat(@NotNull GrammarParser.UnlockStatContext ctx) {
-		// TODO: Not implemented
+		if (!lockElision.isElided(ctx) && !lockCoarsening.isRemoved(ctx)) {
+			unlock(ctx.ID().getText());
+		}
 		return null;
 	}
 
+	/**
+	 * Takes a reader-writer lock for reading. The reader registers itself
+	 * in the reader count under the guard and then checks the writer flag;
+	 * a writer sets its flag before checking the reader count, so at least
+	 * one of them sees the other. A reader that finds a writer withdraws,
+	 * waits for the writer flag to clear and tries again. Readers never
+	 * wait for each other except for the short update of the count.
+	 */
 	@Override
-	public Op visitReturnStat(@NotNull GrammarParser.ReturnStatContext ctx) {
-		// TODO: Not implemented
+	public Op visitRlockStat(@NotNull GrammarParser.RlockStatContext ctx) {
+		String id = ctx.ID().getText();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		Label retryLabel = getNewLabel();
+		Label heldLabel = getNewLabel();
+
+		addReaders(retryLabel, id, "Incr", delay, temp);
+		emit(OpCode.Read, "(Addr " + locks.getHeld(id) + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Equal", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, heldLabel, temp.toString());
+		addReaders(getNewLabel(), id, "Decr", delay, temp);
+		await("(Addr " + locks.getHeld(id) + ")", "Equal", Indexes.Zero, delay, temp);
+		emit(OpCode.Jump, retryLabel);
+		emit(heldLabel, OpCode.Nop);
+
+		registers.free(temp);
+		registers.free(delay);
 		return null;
 	}
 
+	/**
+	 * Releases a reader-writer lock taken for reading.
+	 */
 	@Override
-	public Op visitBlock(@NotNull GrammarParser.BlockContext ctx) {
-		if (ctx.getParent().getParent() instanceof GrammarParser.FuncStatContext) {
-			symbolTable.openScope(((GrammarParser.FuncStatContext) ctx.getParent().getParent()).ID().size());
+	public Op visitRunlockStat(@NotNull GrammarParser.RunlockStatContext ctx) {
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		addReaders(getNewLabel(), ctx.ID().getText(), "Decr", delay, temp);
+		registers.free(temp);
+		registers.free(delay);
+		return null;
+	}
+
+	/**
+	 * Takes a reader-writer lock for writing: sets the writer flag like a
+	 * test-and-set lock, which keeps out other writers and new readers, and
+	 * waits until the readers that got in before have left.
+	 */
+	@Override
+	public Op visitWlockStat(@NotNull GrammarParser.WlockStatContext ctx) {
+		String id = ctx.ID().getText();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		acquire("(Addr " + locks.getHeld(id) + ")", delay, temp);
+		await("(Addr " + locks.getReaders(id) + ")", "Equal", Indexes.Zero, delay, temp);
+		registers.free(temp);
+		registers.free(delay);
+		return null;
+	}
+
+	/**
+	 * Releases a reader-writer lock taken for writing.
+	 */
+	@Override
+	public Op visitWunlockStat(@NotNull GrammarParser.WunlockStatContext ctx) {
+		release("(Addr " + locks.getHeld(ctx.ID().getText()) + ")");
+		return null;
+	}
+
+	/**
+	 * Waits at a sense-reversing barrier. Under its guard an arriving thread
+	 * reads the sense and counts itself. The last thread to arrive resets
+	 * the count and flips the sense, the others poll until the sense
+	 * differs from the one they read. The sense cannot flip back in the
+	 * meantime, as that takes all threads to arrive again.
+	 */
+	@Override
+	public Op visitBarrierStat(@NotNull GrammarParser.BarrierStatContext ctx) {
+		String id = ctx.ID().getText();
+		String guard = "(Addr " + locks.getGuard(id) + ")";
+		String sense = "(Addr " + locks.getSense(id) + ")";
+		String arrived = "(Addr " + locks.getArrived(id) + ")";
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+		Indexes old = registers.allocate();
+		Label waitLabel = getNewLabel();
+		Label passLabel = getNewLabel();
+
+		acquire(guard, delay, temp);
+		emit(OpCode.Read, sense);
+		emit(OpCode.Receive, old.toString());
+		emit(OpCode.Read, arrived);
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Incr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Const, ctx.NUM().getText(), delay.toString());
+		emit(OpCode.Compute, "Lt", temp.toString(), delay.toString(), delay.toString());
+		emit(OpCode.Branch, waitLabel, delay.toString());
+		emit(OpCode.Write, Indexes.Zero.toString(), arrived);
+		emit(OpCode.Compute, "Equal", old.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Write, temp.toString(), sense);
+		release(guard);
+		emit(OpCode.Jump, passLabel);
+		emit(waitLabel, OpCode.Write, temp.toString(), arrived);
+		release(guard);
+		await(sense, "NEq", old, delay, temp);
+		emit(passLabel, OpCode.Nop);
+
+		registers.free(old);
+		registers.free(temp);
+		registers.free(delay);
+		return null;
+	}
+
+	/**
+	 * Appends a value to a channel. The sender waits until the head is
+	 * less than the capacity behind the tail, then writes the value to the
+	 * buffer before moving the tail, so a receiver never sees the tail
+	 * ahead of the values. Senders take the guard of the channel only if
+	 * more than one thread sends to it.
+	 */
+	@Override
+	public Op visitSendStat(@NotNull GrammarParser.SendStatContext ctx) {
+		String id = ctx.ID().getText();
+		String guard = "(Addr " + channels.getSendGuard(id) + ")";
+		String tail = "(Addr " + channels.getTail(id) + ")";
+		String capacity = Integer.toString(channels.getCapacity());
+		boolean guarded = sharedGlobals.hasManyProducers(id);
+		Indexes value = evaluate(ctx.expr());
+		Indexes limit = registers.allocate();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+
+		if (guarded) {
+			acquire(guard, delay, temp);
+		}
+		emit(OpCode.Read, tail);
+		emit(OpCode.Receive, limit.toString());
+		emit(OpCode.Const, capacity, temp.toString());
+		emit(OpCode.Compute, "Sub", limit.toString(), temp.toString(), limit.toString());
+		await("(Addr " + channels.getHead(id) + ")", "Gt", limit, delay, temp);
+		emit(OpCode.Const, capacity, temp.toString());
+		emit(OpCode.Compute, "Add", limit.toString(), temp.toString(), limit.toString()); // the tail again
+		emit(OpCode.Compute, "Mod", limit.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Const, Integer.toString(channels.getBuffer(id)), delay.toString());
+		emit(OpCode.Compute, "Add", temp.toString(), delay.toString(), delay.toString());
+		emit(OpCode.Write, value.toString(), "(Deref " + delay + ")");
+		emit(OpCode.Compute, "Incr", limit.toString(), Indexes.Zero.toString(), limit.toString());
+		emit(OpCode.Write, limit.toString(), tail);
+		if (guarded) {
+			release(guard);
+		}
+
+		registers.free(temp);
+		registers.free(delay);
+		registers.free(limit);
+		registers.free(value);
+		return null;
+	}
+
+	/**
+	 * Increments or decrements the reader count of a reader-writer lock
+	 * under its guard.
+	 * @param label label of the first instruction
+	 * @param id name of the lock
+	 * @param operator Incr or Decr
+	 */
+	private void addReaders(Label label, String id, String operator, Indexes delay, Indexes temp) {
+		String guard = "(Addr " + locks.getGuard(id) + ")";
+		String readers = "(Addr " + locks.getReaders(id) + ")";
+		acquire(label, guard, delay, temp);
+		emit(OpCode.Read, readers);
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, operator, temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Write, temp.toString(), readers);
+		release(guard);
+	}
+
+	/**
+	 * Acquires a lock. A test-and-set lock is taken with acquire. A ticket
+	 * lock draws the next ticket under its guard and waits until that
+	 * ticket is served, polling after a delay proportional to the number of
+	 * tickets ahead of it, and then marks the lock as held.
+	 */
+	private void lock(String id) {
+		Indexes ticket = registers.allocate();
+		Indexes temp = registers.allocate();
+		if (!ticketLocks) {
+			acquire("(Addr " + locks.getHeld(id) + ")", ticket, temp);
 		} else {
-			symbolTable.openScope();
+			String guard = "(Addr " + locks.getGuard(id) + ")";
+			String next = "(Addr " + locks.getNext(id) + ")";
+			Label waitLabel = getNewLabel();
+			Label delayLabel = getNewLabel();
+			Label pollLabel = getNewLabel();
+
+			acquire(guard, ticket, temp);
+			emit(OpCode.Read, next);
+			emit(OpCode.Receive, ticket.toString());
+			emit(OpCode.Compute, "Incr", ticket.toString(), Indexes.Zero.toString(), temp.toString());
+			emit(OpCode.Write, temp.toString(), next);
+			release(guard);
+			emit(OpCode.Jump, pollLabel);
+			emit(waitLabel, OpCode.Compute, "Add", temp.toString(), temp.toString(), temp.toString());
+			emit(OpCode.Compute, "Add", temp.toString(), temp.toString(), temp.toString());
+			emit(delayLabel, OpCode.Compute, "Decr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+			emit(OpCode.Branch, delayLabel, temp.toString());
+			emit(pollLabel, OpCode.Read, "(Addr " + locks.getServing(id) + ")");
+			emit(OpCode.Receive, temp.toString());
+			emit(OpCode.Compute, "Sub", ticket.toString(), temp.toString(), temp.toString());
+			emit(OpCode.Branch, waitLabel, temp.toString()); // tickets ahead of ours
+			emit(OpCode.Const, "1", temp.toString());
+			emit(OpCode.Write, temp.toString(), "(Addr " + locks.getHeld(id) + ")");
+		}
+		registers.free(temp);
+		registers.free(ticket);
+	}
+
+	/**
+	 * Releases a lock: clears a test-and-set lock, or clears the held flag
+	 * of a ticket lock and serves the next ticket.
+	 */
+	private void unlock(String id) {
+		release("(Addr " + locks.getHeld(id) + ")");
+		if (ticketLocks) {
+			String serving = "(Addr " + locks.getServing(id) + ")";
+			Indexes temp = registers.allocate();
+			emit(OpCode.Read, serving);
+			emit(OpCode.Receive, temp.toString());
+			emit(OpCode.Compute, "Incr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+			emit(OpCode.Write, temp.toString(), serving);
+			registers.free(temp);
+		}
+	}
+
+	/**
+	 * Leaves the return value in RegA and returns to the address on top of
+	 * the stack. In an inlined body the value is moved to the result
+	 * register of the call and the rest of the body is skipped.
+	 * A call in tail position that is not inlined reuses the return address
+	 * of the current function: a call of the function itself assigns the
+	 * arguments to the parameters and jumps back to the start of the body,
+	 * a call of another function jumps to it without pushing a return
+	 * address, so it returns straight to the caller. Either way the stack
+	 * does not grow.
+	 */
+	@Override
+	public Op visitReturnStat(@NotNull GrammarParser.ReturnStatContext ctx) {
+		ParserRuleContext expr = ctx.expr();
+		while (expr instanceof GrammarParser.ParExprContext) {
+			expr = ((GrammarParser.ParExprContext) expr).expr();
+		}
+		if (expr instanceof GrammarParser.FuncCallContext && function != null && inlineEnd == null) {
+			GrammarParser.FuncCallContext call = (GrammarParser.FuncCallContext) expr;
+			String name = call.ID().getText();
+			if (name.equals(function)) {
+				storeArguments(evaluateArguments(call.expr()), parameters);
+				emit(OpCode.Jump, body.getLabel());
+				return null;
+			} else if (!inlines(name)) {
+				passArguments(call.expr());
+				emit(OpCode.Jump, functionLabels.get(name));
+				return null;
+			}
+		}
+		Indexes reg = evaluate(ctx.expr());
+		if (inlineEnd != null) {
+			moveTo(reg, inlineResult);
+			registers.free(inlineResult);
+			emit(OpCode.Jump, inlineEnd);
+			return null;
+		} else if (reg != Indexes.RegA) {
+			emit(OpCode.Compute, "Add", reg.toString(), Indexes.Zero.toString(), Indexes.RegA.toString());
 		}
-		ctx.stat().forEach(this::visit);
+		registers.free(reg);
+		emitReturn();
+		return null;
+	}
+
+	@Override
+	public Op visitBlock(@NotNull GrammarParser.BlockContext ctx) {
+		symbolTable.openScope();
+		visitStats(ctx.stat());
 		symbolTable.closeScope();
 		return null;
 	}
 
 	@Override
 	public Op visitFuncCall(@NotNull GrammarParser.FuncCallContext ctx) {
-		// TODO: Not implemented
+		result = invoke(ctx.ID().getText(), ctx.expr());
 		return null;
 	}
 
+	/**
+	 * Waits for the completion flag of the run ID and reads the return
+	 * value from its result slot.
+	 */
 	@Override
 	public Op visitJoinExpr(@NotNull GrammarParser.JoinExprContext ctx) {
-		// TODO: Not implemented
+		String id = ctx.ID().getText();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+
+		await("(Addr " + queue.getDone(id) + ")", "NEq", Indexes.Zero, delay, temp);
+		emit(OpCode.Read, "(Addr " + queue.getSlot(id) + ")");
+		emit(OpCode.Receive, delay.toString());
+
+		registers.free(temp);
+		result = delay;
 		return null;
 	}
 
+	/**
+	 * Takes the oldest value from a channel. The receiver waits until the
+	 * tail is ahead of the head, reads the value and only then moves the
+	 * head, which frees its place in the buffer. Receivers take the guard
+	 * of the channel only if more than one thread receives from it.
+	 */
+	@Override
+	public Op visitReceiveExpr(@NotNull GrammarParser.ReceiveExprContext ctx) {
+		String id = ctx.ID().getText();
+		String guard = "(Addr " + channels.getReceiveGuard(id) + ")";
+		String head = "(Addr " + channels.getHead(id) + ")";
+		boolean guarded = sharedGlobals.hasManyConsumers(id);
+		Indexes index = registers.allocate();
+		Indexes delay = registers.allocate();
+		Indexes temp = registers.allocate();
+
+		if (guarded) {
+			acquire(guard, delay, temp);
+		}
+		emit(OpCode.Read, head);
+		emit(OpCode.Receive, index.toString());
+		await("(Addr " + channels.getTail(id) + ")", "Gt", index, delay, temp);
+		emit(OpCode.Const, Integer.toString(channels.getCapacity()), temp.toString());
+		emit(OpCode.Compute, "Mod", index.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Const, Integer.toString(channels.getBuffer(id)), delay.toString());
+		emit(OpCode.Compute, "Add", temp.toString(), delay.toString(), delay.toString());
+		emit(OpCode.Read, "(Deref " + delay + ")");
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Compute, "Incr", index.toString(), Indexes.Zero.toString(), index.toString());
+		emit(OpCode.Write, index.toString(), head);
+		if (guarded) {
+			release(guard);
+		}
+
+		registers.free(delay);
+		registers.free(index);
+		result = temp;
+		return null;
+	}
+
+	/**
+	 * Reads the word that is set while the lock is held.
+	 */
 	@Override
 	public Op visitLockedExpr(@NotNull GrammarParser.LockedExprContext ctx) {
-		// TODO: Not implemented
+		result = registers.allocate();
+		emit(OpCode.Read, "(Addr " + locks.getHeld(ctx.ID().getText()) + ")");
+		emit(OpCode.Receive, result.toString());
 		return null;
 	}
 
 	@Override
 	public Op visitPlusExpr(@NotNull GrammarParser.PlusExprContext ctx) {
-		visit(ctx.expr(1));
-		visit(ctx.expr(0));
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		emit(OpCode.Pop, Indexes.RegB.toString());
+		Indexes[] regs = evaluate(ctx.expr(0), ctx.expr(1));
 		if (ctx.plusOp().PLUS() == null) {
-			emit(OpCode.Compute, "Sub", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			compute("Sub", regs);
 		} else {
-			emit(OpCode.Compute, "Add", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			compute("Add", regs);
 		}
-		emit(OpCode.Push, Indexes.RegA.toString());
 		return null;
 	}
 
 	@Override
 	public Op visitMultExpr(@NotNull GrammarParser.MultExprContext ctx) {
-		visit(ctx.expr(1));
-		visit(ctx.expr(0));
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		emit(OpCode.Pop, Indexes.RegB.toString());
+		Indexes[] regs = evaluate(ctx.expr(0), ctx.expr(1));
 		if (ctx.multOp().STAR() == null) {
-			emit(OpCode.Compute, "Div", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			compute("Div", regs);
 		} else {
-			emit(OpCode.Compute, "Mul", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			compute("Mul", regs);
 		}
-		emit(OpCode.Push, Indexes.RegA.toString());
 		return null;
 	}
 
-	// Very inefficient because of bad thinking during heat, may revisit later
+	/**
+	 * Exponentiation b^n, where n <= 0 results in 1. A constant exponent is
+	 * expanded into a straight-line chain of multiplications, a constant
+	 * base that is a power of two becomes a shift, and otherwise b^n is
+	 * computed by repeated squaring in O(log n) iterations.
+	 */
 	@Override
 	public Op visitExpExpr(@NotNull GrammarParser.ExpExprContext ctx) {
-		// Labels
-		String zeroLabel = getNewLabelID();
-		String endLabel = getNewLabelID();
+		Value base = constants.fold(ctx.expr(0));
+		Value exponent = constants.fold(ctx.expr(1));
+		if (exponent != null) {
+			multiplyChain(ctx.expr(0), exponent.getValue());
+		} else if (base != null && ConstantFolder.isShiftBase(base.getValue())) {
+			shiftPower(base.getValue(), ctx.expr(1));
+		} else {
+			squareAndMultiply(ctx.expr(0), ctx.expr(1));
+		}
+		return null;
+	}
 
-		// Evaluating expressions
-		visit(ctx.expr(1));
-		visit(ctx.expr(0));
-		// Saving expressions to registers
-		emit(OpCode.Pop, Indexes.RegA.toString()); // value to multiply
-		emit(OpCode.Pop, Indexes.RegB.toString()); // times to multiply
+	/**
+	 * b^n for a constant n, using the binary expansion of n from the most
+	 * significant bit: square for every bit, multiply by b for every one.
+	 */
+	private void multiplyChain(ParserRuleContext baseExpr, int exponent) {
+		Indexes base = evaluate(baseExpr);
+		if (exponent <= 0) {
+			emit(OpCode.Const, "1", base.toString());
+			result = base;
+			return;
+		} else if (exponent == 1) {
+			result = base;
+			return;
+		}
+		String bits = Integer.toBinaryString(exponent);
+		Indexes power = registers.allocate();
+		emit(OpCode.Compute, "Mul", base.toString(), base.toString(), power.toString());
+		for (int i = 1; i < bits.length(); i++) {
+			if (i > 1) {
+				emit(OpCode.Compute, "Mul", power.toString(), power.toString(), power.toString());
+			}
+			if (bits.charAt(i) == '1') {
+				emit(OpCode.Compute, "Mul", power.toString(), base.toString(), power.toString());
+			}
+		}
+		registers.free(base);
+		result = power;
+	}
+
+	/**
+	 * b^n for a constant b that is 0, 1 or a power of two 2^k: 1 << (k * n).
+	 * Shifts of 32 or more give 0 and are never emitted.
+	 */
+	private void shiftPower(int base, ParserRuleContext exponentExpr) {
+		Indexes exponent = evaluate(exponentExpr);
+		result = registers.allocate();
+		if (base == 0) {
+			emit(OpCode.Compute, "LtE", exponent.toString(), Indexes.Zero.toString(), result.toString());
+			registers.free(exponent);
+			return;
+		} else if (base == 1) {
+			emit(OpCode.Const, "1", result.toString());
+			registers.free(exponent);
+			return;
+		}
+		int shift = Integer.numberOfTrailingZeros(base);
+		Label zeroLabel = getNewLabel();
+		Label endLabel = getNewLabel();
+		Indexes temp = registers.allocate();
 
-		// Checking for 0 in RegB
-		emit(OpCode.Compute, "Equal", Indexes.RegB.toString(), Indexes.Zero.toString(), Indexes.RegD.toString());
-		emit(OpCode.Branch, Indexes.RegD.toString(), "(Abs " + zeroLabel + ")");
+		emit(OpCode.Const, "1", result.toString());
+		emit(OpCode.Compute, "LtE", exponent.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, endLabel, temp.toString()); // n <= 0 gives 1
+		emit(OpCode.Const, Integer.toString((Integer.SIZE + shift - 1) / shift), temp.toString());
+		emit(OpCode.Compute, "GtE", exponent.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Branch, zeroLabel, temp.toString()); // everything shifted out
+		if (shift > 1) {
+			emit(OpCode.Const, Integer.toString(shift), temp.toString());
+			emit(OpCode.Compute, "Mul", exponent.toString(), temp.toString(), exponent.toString());
+		}
+		emit(OpCode.Compute, "LShift", result.toString(), exponent.toString(), result.toString());
+		emit(OpCode.Jump, endLabel);
+		emit(zeroLabel, OpCode.Const, "0", result.toString());
+		emit(endLabel, OpCode.Nop);
 
-		// Continue if not zero
-		emit(OpCode.Const, "1", Indexes.RegC.toString()); // constant reg with 1, used for compare
-		emit(OpCode.Const, "1", Indexes.RegE.toString()); // constant reg with 1, used for result
-		{ // Block to clarify, while loop in here
-			// More Labels
-			String beginLabel = getNewLabelID();
-			String checkLabel = getNewLabelID();
+		registers.free(temp);
+		registers.free(exponent);
+	}
 
-			emit(OpCode.Jump, "(Abs " + checkLabel + ")"); // jump to check
+	/**
+	 * b^n by repeated squaring: every iteration multiplies the result by b
+	 * if the lowest bit of n is set, squares b and shifts n to the right.
+	 */
+	private void squareAndMultiply(ParserRuleContext baseExpr, ParserRuleContext exponentExpr) {
+		// Labels
+		Label beginLabel = getNewLabel();
+		Label squareLabel = getNewLabel();
+		Label checkLabel = getNewLabel();
 
-			// Content of while
-			emit(beginLabel, OpCode.Compute, "Mul", Indexes.RegA.toString(), Indexes.RegE.toString(),
-					Indexes.RegE.toString());
-			emit(OpCode.Compute, "Sub", Indexes.RegB.toString(), Indexes.RegC.toString(), Indexes.RegB.toString());
+		// Evaluating expressions
+		Indexes[] regs = evaluate(baseExpr, exponentExpr);
+		Indexes base = regs[0];
+		Indexes exponent = regs[1];
+		Indexes temp = registers.allocate();
+		result = registers.allocate();
+		// Keep the constant 1 in a register if one is left
+		Indexes one = registers.available() > 0 ? registers.allocate() : temp;
 
-			// Checking part
-			emit(checkLabel, OpCode.Compute, "GtE", Indexes.RegB.toString(), Indexes.RegC.toString(),
-					Indexes.RegD.toString());
-			emit(OpCode.Branch, Indexes.RegD.toString(), "(Abs " + beginLabel + ")");
+		emit(OpCode.Const, "1", result.toString());
+		if (one != temp) {
+			emit(OpCode.Const, "1", one.toString());
 		}
-		emit(OpCode.Jump, "(Abs " + endLabel + ")");
+		emit(OpCode.Jump, checkLabel); // jump to check
 
-		// Jump target if zero
-		emit(zeroLabel, OpCode.Const, "1", Indexes.RegE.toString()); // constant with 1, for returning
+		// Multiply if the lowest bit is set
+		if (one == temp) {
+			emit(beginLabel, OpCode.Const, "1", temp.toString());
+			emit(OpCode.Compute, "And", exponent.toString(), temp.toString(), temp.toString());
+		} else {
+			emit(beginLabel, OpCode.Compute, "And", exponent.toString(), one.toString(), temp.toString());
+		}
+		emit(OpCode.Compute, "Equal", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, squareLabel, temp.toString());
+		emit(OpCode.Compute, "Mul", result.toString(), base.toString(), result.toString());
 
-		// End
-		emit(endLabel, OpCode.Push, Indexes.RegE.toString());
+		// Square and shift
+		emit(squareLabel, OpCode.Compute, "Mul", base.toString(), base.toString(), base.toString());
+		if (one == temp) {
+			emit(OpCode.Const, "1", temp.toString());
+		}
+		emit(OpCode.Compute, "RShift", exponent.toString(), one.toString(), exponent.toString());
 
-		return null;
+		// Checking part
+		emit(checkLabel, OpCode.Compute, "Gt", exponent.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, beginLabel, temp.toString());
+
+		registers.free(base);
+		registers.free(exponent);
+		registers.free(temp);
+		registers.free(one);
 	}
 
+	/**
+	 * Evaluates && and || from left to right. The right operand is skipped
+	 * when the left operand already decides the outcome, in which case the
+	 * register of the left operand holds the result.
+	 */
 	@Override
 	public Op visitBoolExpr(@NotNull GrammarParser.BoolExprContext ctx) {
-		visit(ctx.expr(1));
-		visit(ctx.expr(0));
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		emit(OpCode.Pop, Indexes.RegB.toString());
+		Label endLabel = getNewLabel();
+		Indexes left = evaluate(ctx.expr(0));
 		if (ctx.boolOp().AND() == null) {
-			emit(OpCode.Compute, "Or", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			emit(OpCode.Branch, endLabel, left.toString()); // true || x is true
 		} else {
-			emit(OpCode.Compute, "And", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			Label rightLabel = getNewLabel();
+			emit(OpCode.Branch, rightLabel, left.toString());
+			emit(OpCode.Jump, endLabel); // false && x is false
+			emit(rightLabel, OpCode.Nop);
 		}
-		emit(OpCode.Push, Indexes.RegA.toString());
+		registers.free(left);
+		moveTo(evaluate(ctx.expr(1)), left);
+		emit(endLabel, OpCode.Nop);
+		result = left;
 		return null;
 	}
 
 	@Override
 	public Op visitCmpExpr(@NotNull GrammarParser.CmpExprContext ctx) {
-		visit(ctx.expr(1));
-		visit(ctx.expr(0));
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		emit(OpCode.Pop, Indexes.RegB.toString());
-		if (ctx.cmpOp().EQ() != null) {
-			emit(OpCode.Compute, "Equal", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		} else if (ctx.cmpOp().NE() != null) {
-			emit(OpCode.Compute, "NEq", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		} else if (ctx.cmpOp().GT() != null) {
-			emit(OpCode.Compute, "Gt", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		} else if (ctx.cmpOp().GE() != null) {
-			emit(OpCode.Compute, "GtE", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		} else if (ctx.cmpOp().LT() != null) {
-			emit(OpCode.Compute, "Lt", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		} else if (ctx.cmpOp().LE() != null) {
-			emit(OpCode.Compute, "LtE", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
-		}
-		emit(OpCode.Push, Indexes.RegA.toString());
+		compare(ctx, false);
 		return null;
 	}
 
 	@Override
 	public Op visitPrfExpr(@NotNull GrammarParser.PrfExprContext ctx) {
-		visit(ctx.expr());
-		emit(OpCode.Pop, Indexes.RegA.toString());
-		if (ctx.prfOp().MINUS() == null) {
-			emit(OpCode.Compute, "Sub", Indexes.Zero.toString(), Indexes.RegA.toString(), Indexes.RegA.toString());
+		Indexes reg = evaluate(ctx.expr());
+		if (ctx.prfOp().MINUS() != null) {
+			emit(OpCode.Compute, "Sub", Indexes.Zero.toString(), reg.toString(), reg.toString());
 		} else {
-			emit(OpCode.Const, "1", Indexes.RegB.toString()); // constant reg with 1, used for XOR
-			emit(OpCode.Compute, "Xor", Indexes.RegA.toString(), Indexes.RegB.toString(), Indexes.RegA.toString());
+			emit(OpCode.Compute, "Equal", reg.toString(), Indexes.Zero.toString(), reg.toString());
 		}
-		emit(OpCode.Push, Indexes.RegA.toString());
+		result = reg;
 		return null;
 	}
 
 	@Override
 	public Op visitParExpr(@NotNull GrammarParser.ParExprContext ctx) {
-		visit(ctx.expr());
+		result = evaluate(ctx.expr());
 		return null;
 	}
 
 	@Override
 	public Op visitIdExpr(@NotNull GrammarParser.IdExprContext ctx) {
 		String id = ctx.ID().getText();
-		if (symbolTable.isGlobal(id)) {
-			emit(OpCode.Read, "(Addr " + symbolTable.offset(id) + ")");
-			emit(OpCode.Receive, Indexes.RegA.toString());
+		result = registers.allocate();
+		if (pinned.containsKey(id)) {
+			emit(OpCode.Compute, "Add", pinned.get(id).toString(), Indexes.Zero.toString(), result.toString());
+		} else if (symbolTable.isGlobal(id)) {
+			readGlobal(id, result);
 		} else {
-			emit(OpCode.Load, "(Addr " + (symbolTable.arp(id) + symbolTable.offset(id)) + ")", Indexes.RegA.toString());
+			emit(OpCode.Load, localAddress(id), result.toString());
 		}
-		emit(OpCode.Push, Indexes.RegA.toString());
 		return null;
 	}
 
 	@Override
 	public Op visitNumExpr(@NotNull GrammarParser.NumExprContext ctx) {
-		emit(OpCode.Const, ctx.NUM().getText(), Indexes.RegA.toString());
-		emit(OpCode.Push, Indexes.RegA.toString());
+		result = registers.allocate();
+		emit(OpCode.Const, ctx.NUM().getText(), result.toString());
 		return null;
 	}
 
@@ -442,44 +1870,669 @@ public class PP07Generator extends GrammarBaseVisitor<Op> {
 
 	@Override
 	public Op visitTrueExpr(@NotNull GrammarParser.TrueExprContext ctx) {
-		emit(OpCode.Const, "1", Indexes.RegA.toString());
-		emit(OpCode.Push, Indexes.RegA.toString());
+		result = registers.allocate();
+		emit(OpCode.Const, "1", result.toString());
 		return null;
 	}
 
 	@Override
 	public Op visitFalseExpr(@NotNull GrammarParser.FalseExprContext ctx) {
-		emit(OpCode.Const, "0", Indexes.RegA.toString());
-		emit(OpCode.Push, Indexes.RegA.toString());
+		result = registers.allocate();
+		emit(OpCode.Const, "0", result.toString());
 		return null;
 	}
 
-	private void emit(Op op) {
-		emit(op.getLabel(), op.getOpCode(), op.getOperands());
+	/**
+	 * Loop-invariant code motion: evaluates the invariant expressions of a
+	 * while loop once, before the loop, into hidden local variables. Inside
+	 * the loop these expressions are loaded instead of evaluated. Equal
+	 * expressions share a variable.
+	 * @param ctx while loop, of which the preheader is being emitted
+	 * @return the hoisted expressions
+	 */
+	private List<GrammarParser.ExprContext> hoist(GrammarParser.WhileStatContext ctx) {
+		List<GrammarParser.ExprContext> invariants = new LoopInvariants(constants, symbolTable, sharedGlobals, hoisted).find(ctx);
+		Map<String, String> slots = new HashMap<>();
+		for (GrammarParser.ExprContext expr : invariants) {
+			String slot = slots.get(expr.getText());
+			if (slot == null) {
+				slot = "#licm" + hoistID++; // cannot clash with an identifier
+				Indexes reg = evaluate(expr);
+				addLocal(slot);
+				emit(OpCode.Store, reg.toString(), localAddress(slot));
+				registers.free(reg);
+				slots.put(expr.getText(), slot);
+			}
+		}
+		for (GrammarParser.ExprContext expr : invariants) {
+			hoisted.put(expr, slots.get(expr.getText()));
+			registers.setLoaded(expr);
+		}
+		return invariants;
 	}
 
-	private void emit(OpCode opCode, String... strings) {
-		emit(null, opCode, strings);
+	/**
+	 * Drops the hidden variables of a loop after it is emitted, since the
+	 * same loop is emitted again if its function is inlined more than once.
+	 */
+	private void unhoist(GrammarParser.WhileStatContext ctx, List<GrammarParser.ExprContext> invariants) {
+		if (!invariants.isEmpty()) {
+			for (GrammarParser.ExprContext expr : invariants) {
+				hoisted.removeFrom(expr);
+			}
+			registers.forget(ctx);
+		}
 	}
 
-	private void emit(String label, OpCode opCode, String... strings) {
-		String operands = "";
-		for (String string : strings) {
-			operands += string + " ";
+	/**
+	 * Emits a list of statements. Statements after one that never completes,
+	 * such as an infinite loop, cannot be reached: no code is generated for
+	 * them, but their declarations are still recorded and functions declared
+	 * among them are still generated.
+	 */
+	private void visitStats(List<GrammarParser.StatContext> stats) {
+		boolean reachable = true;
+		for (GrammarParser.StatContext stat : stats) {
+			if (reachable || stat instanceof GrammarParser.FuncStatContext) {
+				visit(stat);
+			} else if (stat instanceof GrammarParser.DeclStatContext) {
+				declare((GrammarParser.DeclStatContext) stat);
+			}
+			reachable &= completes(stat);
 		}
-		if (label != null) {
-			labels.put(label, new Label(label, lineNum));
+	}
+
+	/**
+	 * Whether execution can continue after the given statement. This is not
+	 * the case for a loop with a condition that is always true, or for a
+	 * block or if statement of which every path ends in such a loop.
+	 */
+	private boolean completes(GrammarParser.StatContext stat) {
+		if (stat instanceof GrammarParser.WhileStatContext) {
+			Value condition = condition(stat, ((GrammarParser.WhileStatContext) stat).expr());
+			return condition == null || condition.getValue() == 0;
+		} else if (stat instanceof GrammarParser.BlockStatContext) {
+			return completes(((GrammarParser.BlockStatContext) stat).block());
+		} else if (stat instanceof GrammarParser.IfStatContext) {
+			GrammarParser.IfStatContext ifStat = (GrammarParser.IfStatContext) stat;
+			Value condition = condition(ifStat, ifStat.expr());
+			boolean then = completes(ifStat.block(0));
+			boolean otherwise = ifStat.ELSE() == null || completes(ifStat.block(1));
+			if (condition == null) {
+				return then || otherwise;
+			}
+			return condition.getValue() != 0 ? then : otherwise;
 		}
-		lineNum++;
-		try {
-			writer.write("\t" + opCode.toString() + " " + operands + ",");
-			writer.newLine();
-		} catch (IOException e) {
-			e.printStackTrace();
+		return true;
+	}
+
+	private boolean completes(GrammarParser.BlockContext block) {
+		return block.stat().stream().allMatch(this::completes);
+	}
+
+	/**
+	 * Returns the value of the condition of an if or while statement if it
+	 * is constant. The condition is the entry of the statement in the flow
+	 * graph built by the checker.
+	 * @param stat if or while statement
+	 * @param expr condition, used if the checker recorded no entry
+	 * @return value of the condition, or null if it is not constant
+	 */
+	private Value condition(ParserRuleContext stat, ParserRuleContext expr) {
+		ParserRuleContext entry = checkResult.getEntry(stat);
+		return constants.fold(entry == null ? expr : entry);
+	}
+
+	/**
+	 * Adds the variable of a declaration to the symbol table.
+	 */
+	private void declare(GrammarParser.DeclStatContext ctx) {
+		if (ctx.GLOBAL() == null) {
+			addLocal(ctx.ID().getText());
+		} else {
+			symbolTable.addGlobal(ctx.ID().getText(), type);
+			if (symbolTable.offset(ctx.ID().getText()) == 0) {
+				firstGlobal = ctx.ID().getText();
+			}
+		}
+	}
+
+	/**
+	 * Adds a local variable to the deepest scope of the symbol table.
+	 */
+	private void addLocal(String id) {
+		symbolTable.add(id, type);
+		localEnd = Math.max(localEnd, symbolTable.offset(id) + TypeSize.WORD);
+	}
+
+	/**
+	 * Returns the local memory address of a local variable.
+	 */
+	private String localAddress(String id) {
+		return "(Addr " + (localBase + symbolTable.offset(id)) + ")";
+	}
+
+	/**
+	 * Emits a call of a function, inlined if it is small enough, and returns
+	 * the register holding its return value.
+	 */
+	private Indexes invoke(String name, List<GrammarParser.ExprContext> args) {
+		if (inlines(name)) {
+			return inline(checkResult.getFunctions().getFunction(name).getContext(), args);
+		}
+		return call(name, args);
+	}
+
+	/**
+	 * Whether a call of the given function is inlined here: it is not
+	 * recursive, small enough or called from one place only, and the free
+	 * registers suffice for its body.
+	 */
+	private boolean inlines(String name) {
+		GrammarParser.FuncStatContext callee = checkResult.getFunctions().getFunction(name).getContext();
+		return inlineBudget > 0 && !callGraph.isRecursive(name)
+				&& (callGraph.getSize(name) <= inlineBudget || callGraph.getCallSites(name) == 1)
+				&& maxNeed(callee.block()) <= registers.available();
+	}
+
+	/**
+	 * Emits the body of a function in place of a call. The parameters and
+	 * variables of the function get fresh slots after the variables of the
+	 * caller, in a scope that hides those of the caller. Registers in use
+	 * stay where they are, the body only uses the others.
+	 * @param callee function to inline, which is not recursive
+	 * @param args argument expressions
+	 * @return register holding the return value
+	 */
+	private Indexes inline(GrammarParser.FuncStatContext callee, List<GrammarParser.ExprContext> args) {
+		List<Indexes> values = evaluateArguments(args);
+		symbolTable.openFrame();
+		List<String> addresses = new ArrayList<>();
+		for (int i = 1; i < callee.ID().size(); i++) {
+			addLocal(callee.ID(i).getText());
+			addresses.add(localAddress(callee.ID(i).getText()));
+		}
+		storeArguments(values, addresses);
+
+		Label outerEnd = inlineEnd;
+		Indexes outerResult = inlineResult;
+		Map<String, Indexes> outerPinned = pinned;
+		inlineEnd = getNewLabel();
+		inlineResult = registers.allocate();
+		registers.free(inlineResult);
+		pinned = new HashMap<>();
+		visit(callee.block());
+		emit(inlineEnd, OpCode.Nop);
+		registers.allocate(inlineResult);
+		Indexes value = inlineResult;
+
+		inlineEnd = outerEnd;
+		inlineResult = outerResult;
+		pinned = outerPinned;
+		symbolTable.closeScope();
+		return value;
+	}
+
+	/**
+	 * Evaluates the arguments of a call that are stored in local memory. They
+	 * are kept in registers if they fit next to the registers in use,
+	 * otherwise they are pushed.
+	 * @param args argument expressions
+	 * @return registers holding the arguments, or null if they were pushed
+	 */
+	private List<Indexes> evaluateArguments(List<GrammarParser.ExprContext> args) {
+		boolean direct = args.size() <= registers.available();
+		for (int i = 0; i < args.size(); i++) {
+			direct &= registers.need(args.get(i)) <= registers.available() - i;
+		}
+		List<Indexes> values = new ArrayList<>();
+		for (GrammarParser.ExprContext arg : args) {
+			Indexes reg = evaluate(arg);
+			if (direct) {
+				values.add(reg);
+			} else {
+				emit(OpCode.Push, reg.toString());
+				registers.free(reg);
+			}
+		}
+		return direct ? values : null;
+	}
+
+	/**
+	 * Stores arguments evaluated by evaluateArguments at the given addresses.
+	 * @param values registers holding the arguments, or null if they were pushed
+	 * @param addresses addresses of the parameters
+	 */
+	private void storeArguments(List<Indexes> values, List<String> addresses) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				emit(OpCode.Store, values.get(i).toString(), addresses.get(i));
+				registers.free(values.get(i));
+			}
+		} else {
+			Indexes temp = registers.allocate();
+			for (int i = addresses.size() - 1; i >= 0; i--) {
+				emit(OpCode.Pop, temp.toString());
+				emit(OpCode.Store, temp.toString(), addresses.get(i));
+			}
+			registers.free(temp);
+		}
+	}
+
+	/**
+	 * Emits a call of a function and returns the register holding its
+	 * return value. The registers in use are saved on the stack, and so are
+	 * the variables of the calling function if the callee may call it
+	 * again, since they live at the same addresses on every call. The return
+	 * address is pushed before the arguments that do not fit in RegA..RegE;
+	 * the return value comes back in RegA.
+	 * @param name function to call
+	 * @param args argument expressions
+	 * @return register holding the return value
+	 */
+	private Indexes call(String name, List<GrammarParser.ExprContext> args) {
+		List<Indexes> live = registers.inUse();
+		for (Indexes reg : live) {
+			emit(OpCode.Push, reg.toString());
+			registers.free(reg);
+		}
+		List<Integer> frame = function != null && callGraph.reaches(name, function)
+				? symbolTable.offsets() : new ArrayList<>();
+		for (int offset : frame) {
+			Indexes reg = registers.allocate();
+			emit(OpCode.Load, "(Addr " + (localBase + offset) + ")", reg.toString());
+			emit(OpCode.Push, reg.toString());
+			registers.free(reg);
+		}
+		Label returnLabel = getNewLabel();
+		Indexes address = registers.allocate();
+		emit(new Op(null, OpCode.Const, returnLabel, address.toString()));
+		emit(OpCode.Push, address.toString());
+		registers.free(address);
+		passArguments(args);
+		emit(OpCode.Jump, functionLabels.get(name));
+		emit(returnLabel, OpCode.Nop);
+
+		registers.allocate(Indexes.RegA);
+		if (!frame.isEmpty()) {
+			Indexes temp = registers.allocate();
+			for (int i = frame.size() - 1; i >= 0; i--) {
+				emit(OpCode.Pop, temp.toString());
+				emit(OpCode.Store, temp.toString(), "(Addr " + (localBase + frame.get(i)) + ")");
+			}
+			registers.free(temp);
+		}
+		Indexes value = Indexes.RegA;
+		if (live.contains(Indexes.RegA)) {
+			// the saved registers go back where they were, at least one is free
+			for (int i = RegisterAllocator.REGISTERS.length - 1; i >= 0; i--) {
+				if (!live.contains(RegisterAllocator.REGISTERS[i])) {
+					value = RegisterAllocator.REGISTERS[i];
+				}
+			}
+			moveTo(Indexes.RegA, value);
+		}
+		for (int i = live.size() - 1; i >= 0; i--) {
+			registers.allocate(live.get(i));
+			emit(OpCode.Pop, live.get(i).toString());
+		}
+		return value;
+	}
+
+	/**
+	 * Evaluates the arguments of a call into RegA..RegE, and pushes the
+	 * ones that do not fit. Arguments are evaluated straight into their
+	 * register unless an argument needs more registers than the previous
+	 * arguments left, in which case they all go through the stack.
+	 */
+	private void passArguments(List<GrammarParser.ExprContext> args) {
+		int count = Math.min(args.size(), RegisterAllocator.REGISTERS.length);
+		for (int i = count; i < args.size(); i++) {
+			Indexes reg = evaluate(args.get(i));
+			emit(OpCode.Push, reg.toString());
+			registers.free(reg);
+		}
+		boolean direct = true;
+		for (int i = 0; i < count; i++) {
+			direct &= registers.need(args.get(i)) <= RegisterAllocator.REGISTERS.length - i;
+		}
+		for (int i = 0; i < count; i++) {
+			Indexes reg = evaluate(args.get(i));
+			if (direct) {
+				moveTo(reg, RegisterAllocator.REGISTERS[i]);
+			} else {
+				emit(OpCode.Push, reg.toString());
+				registers.free(reg);
+			}
+		}
+		for (int i = count - 1; i >= 0 && !direct; i--) {
+			registers.allocate(RegisterAllocator.REGISTERS[i]);
+			emit(OpCode.Pop, RegisterAllocator.REGISTERS[i].toString());
+		}
+		for (int i = 0; i < count; i++) {
+			registers.free(RegisterAllocator.REGISTERS[i]);
+		}
+	}
+
+	/**
+	 * Returns to the address on top of the stack.
+	 */
+	private void emitReturn() {
+		emit(OpCode.Pop, Indexes.RegB.toString());
+		emit(OpCode.Jump, "(Ind " + Indexes.RegB + ")");
+	}
+
+	/**
+	 * Emits a test-and-test-and-set loop acquiring the given lock. The lock
+	 * is read until it is free before a TestAndSet is tried, and every
+	 * failed attempt is followed by a local delay loop that doubles up to
+	 * MAX_BACKOFF iterations, so waiting cores leave the shared memory to
+	 * the core holding the lock.
+	 * @param lock address of the lock
+	 * @param delay register for the delay
+	 * @param temp register for the replies
+	 */
+	private void acquire(String lock, Indexes delay, Indexes temp) {
+		acquire(getNewLabel(), lock, delay, temp);
+	}
+
+	private void acquire(Label label, String lock, Indexes delay, Indexes temp) {
+		Label testLabel = getNewLabel();
+		Label waitLabel = getNewLabel();
+		Label delayLabel = getNewLabel();
+		Label acquiredLabel = getNewLabel();
+
+		emit(label, OpCode.Const, Integer.toString(MIN_BACKOFF), delay.toString());
+		emit(testLabel, OpCode.Read, lock);
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Branch, waitLabel, temp.toString());
+		emit(OpCode.TestAndSet, lock);
+		emit(OpCode.Receive, temp.toString());
+		emit(OpCode.Branch, acquiredLabel, temp.toString());
+		emit(waitLabel, OpCode.Compute, "Add", delay.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(delayLabel, OpCode.Compute, "Decr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, delayLabel, temp.toString());
+		backoff(delay, temp);
+		emit(OpCode.Jump, testLabel);
+		emit(acquiredLabel, OpCode.Nop);
+	}
+
+	/**
+	 * Emits code polling the given word until it compares to the given
+	 * register with the given operator. Every poll that finds it otherwise
+	 * is followed by a delay loop in local registers, which doubles up to
+	 * MAX_BACKOFF iterations, so a waiting core leaves the shared memory to
+	 * the threads it waits for.
+	 * @param address address of the word
+	 * @param operator comparison of the word with the value
+	 * @param value register the word is compared to
+	 * @param delay register for the delay
+	 * @param temp register for the replies
+	 */
+	private void await(String address, String operator, Indexes value, Indexes delay, Indexes temp) {
+		Label pollLabel = getNewLabel();
+		Label waitLabel = getNewLabel();
+		Label readyLabel = getNewLabel();
+
+		emit(OpCode.Const, Integer.toString(MIN_BACKOFF), delay.toString());
+		emit(pollLabel, OpCode.Read, address);
+		emit(OpCode.Receive, temp.toString());
+		if (!operator.equals("NEq") || value != Indexes.Zero) {
+			emit(OpCode.Compute, operator, temp.toString(), value.toString(), temp.toString());
+		} // a nonzero word is a true condition already
+		emit(OpCode.Branch, readyLabel, temp.toString());
+		emit(OpCode.Compute, "Add", delay.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(waitLabel, OpCode.Compute, "Decr", temp.toString(), Indexes.Zero.toString(), temp.toString());
+		emit(OpCode.Branch, waitLabel, temp.toString());
+		backoff(delay, temp);
+		emit(OpCode.Jump, pollLabel);
+		emit(readyLabel, OpCode.Nop);
+	}
+
+	/**
+	 * Emits code doubling the delay in the given register, unless it has
+	 * reached MAX_BACKOFF, without a branch.
+	 * @param delay register holding the delay
+	 * @param temp register that is overwritten
+	 */
+	private void backoff(Indexes delay, Indexes temp) {
+		emit(OpCode.Const, Integer.toString(MAX_BACKOFF), temp.toString());
+		emit(OpCode.Compute, "Lt", delay.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Compute, "Mul", delay.toString(), temp.toString(), temp.toString());
+		emit(OpCode.Compute, "Add", delay.toString(), temp.toString(), delay.toString());
+	}
+
+	/**
+	 * Emits code releasing the given lock.
+	 */
+	private void release(String lock) {
+		emit(OpCode.Write, Indexes.Zero.toString(), lock);
+	}
+
+	/**
+	 * Emits code reading a global variable into the given register. Globals
+	 * that only one thread uses are kept in local memory.
+	 */
+	private void readGlobal(String id, Indexes reg) {
+		if (sharedGlobals.isShared(id)) {
+			sharedAddresses.add("(Addr " + symbolTable.offset(id) + ")");
+			emit(OpCode.Read, "(Addr " + symbolTable.offset(id) + ")");
+			emit(OpCode.Receive, reg.toString());
+		} else {
+			emit(OpCode.Load, "(Addr " + (LOCAL_GLOBALS + symbolTable.offset(id)) + ")", reg.toString());
+		}
+	}
+
+	/**
+	 * Emits code writing the given register to a global variable.
+	 */
+	private void writeGlobal(Indexes reg, String id) {
+		if (sharedGlobals.isShared(id)) {
+			sharedAddresses.add("(Addr " + symbolTable.offset(id) + ")");
+			emit(OpCode.Write, reg.toString(), "(Addr " + symbolTable.offset(id) + ")");
+		} else {
+			emit(OpCode.Store, reg.toString(), "(Addr " + (LOCAL_GLOBALS + symbolTable.offset(id)) + ")");
+		}
+	}
+
+	/**
+	 * Evaluates an expression into a register taken from the allocator.
+	 * Constant expressions are folded into a single Const.
+	 * The caller is responsible for freeing the returned register.
+	 * @param expr expression to evaluate
+	 * @return register holding the value of the expression
+	 */
+	private Indexes evaluate(ParserRuleContext expr) {
+		Value value = constants.fold(expr);
+		String slot = hoisted.get(expr);
+		if (value != null) {
+			result = registers.allocate();
+			emit(OpCode.Const, value.toString(), result.toString());
+		} else if (slot != null) {
+			result = registers.allocate();
+			emit(OpCode.Load, localAddress(slot), result.toString());
+		} else {
+			visit(expr);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates both operands of a binary expression. The operand with the
+	 * highest Sethi-Ullman number is evaluated first; its value is only
+	 * spilled to the stack when the other operand needs more registers than
+	 * there are left.
+	 * @return registers holding the left and right operand, in that order
+	 */
+	private Indexes[] evaluate(ParserRuleContext left, ParserRuleContext right) {
+		boolean rightFirst = registers.need(right) > registers.need(left);
+		ParserRuleContext first = rightFirst ? right : left;
+		ParserRuleContext second = rightFirst ? left : right;
+
+		Indexes firstReg = evaluate(first);
+		Indexes secondReg;
+		int need = Math.min(registers.need(second), RegisterAllocator.REGISTERS.length);
+		if (registers.available() < need) {
+			emit(OpCode.Push, firstReg.toString());
+			registers.free(firstReg);
+			secondReg = evaluate(second);
+			firstReg = registers.allocate();
+			emit(OpCode.Pop, firstReg.toString());
+		} else {
+			secondReg = evaluate(second);
+		}
+		return rightFirst ? new Indexes[]{secondReg, firstReg} : new Indexes[]{firstReg, secondReg};
+	}
+
+	/**
+	 * Emits code that jumps to the target label if the condition evaluates
+	 * to the given value and falls through otherwise, without materialising
+	 * the value of && and || or of the condition itself. The right operand
+	 * of && and || is only evaluated when the left one does not decide the
+	 * outcome.
+	 * @param expr boolean condition
+	 * @param when value of the condition for which to jump
+	 * @param target label to jump to
+	 */
+	private void branch(ParserRuleContext expr, boolean when, Label target) {
+		Value value = constants.fold(expr);
+		if (value != null) {
+			if ((value.getValue() != 0) == when) {
+				emit(OpCode.Jump, target);
+			}
+		} else if (hoisted.get(expr) != null) {
+			branchOn(evaluate(expr), when, target);
+		} else if (expr instanceof GrammarParser.ParExprContext) {
+			branch(((GrammarParser.ParExprContext) expr).expr(), when, target);
+		} else if (expr instanceof GrammarParser.PrfExprContext
+				&& ((GrammarParser.PrfExprContext) expr).prfOp().NOT() != null) {
+			branch(((GrammarParser.PrfExprContext) expr).expr(), !when, target);
+		} else if (expr instanceof GrammarParser.CmpExprContext) {
+			// compare straight into the branch condition, inverted when jumping on false
+			compare((GrammarParser.CmpExprContext) expr, !when);
+			emit(OpCode.Branch, target, result.toString());
+			registers.free(result);
+		} else if (expr instanceof GrammarParser.BoolExprContext) {
+			GrammarParser.BoolExprContext bool = (GrammarParser.BoolExprContext) expr;
+			if ((bool.boolOp().AND() != null) == when) {
+				// both operands have to agree: skip the right one if the left one does not
+				Label skipLabel = getNewLabel();
+				branch(bool.expr(0), !when, skipLabel);
+				branch(bool.expr(1), when, target);
+				emit(skipLabel, OpCode.Nop);
+			} else {
+				// either operand decides
+				branch(bool.expr(0), when, target);
+				branch(bool.expr(1), when, target);
+			}
+		} else {
+			branchOn(evaluate(expr), when, target);
+		}
+	}
+
+	/**
+	 * Emits a jump to the target label if the boolean in the given register
+	 * has the given value, and frees the register.
+	 */
+	private void branchOn(Indexes reg, boolean when, Label target) {
+		if (!when) {
+			emit(OpCode.Compute, "Equal", reg.toString(), Indexes.Zero.toString(), reg.toString());
+		}
+		emit(OpCode.Branch, target, reg.toString());
+		registers.free(reg);
+	}
+
+	/**
+	 * Evaluates a comparison into a register, which is left in result. An
+	 * operand that is the constant 0 is read from the Zero register instead
+	 * of being loaded.
+	 * @param ctx comparison to evaluate
+	 * @param negate whether to compute the inverse of the comparison
+	 */
+	private void compare(GrammarParser.CmpExprContext ctx, boolean negate) {
+		GrammarParser.CmpOpContext op = ctx.cmpOp();
+		String operator;
+		if (op.EQ() != null) {
+			operator = negate ? "NEq" : "Equal";
+		} else if (op.NE() != null) {
+			operator = negate ? "Equal" : "NEq";
+		} else if (op.GT() != null) {
+			operator = negate ? "LtE" : "Gt";
+		} else if (op.GE() != null) {
+			operator = negate ? "Lt" : "GtE";
+		} else if (op.LT() != null) {
+			operator = negate ? "GtE" : "Lt";
+		} else {
+			operator = negate ? "Gt" : "LtE";
+		}
+
+		if (RegisterAllocator.isZero(constants.fold(ctx.expr(1)))) {
+			Indexes reg = evaluate(ctx.expr(0));
+			emit(OpCode.Compute, operator, reg.toString(), Indexes.Zero.toString(), reg.toString());
+			result = reg;
+		} else if (RegisterAllocator.isZero(constants.fold(ctx.expr(0)))) {
+			Indexes reg = evaluate(ctx.expr(1));
+			emit(OpCode.Compute, operator, Indexes.Zero.toString(), reg.toString(), reg.toString());
+			result = reg;
+		} else {
+			compute(operator, evaluate(ctx.expr(0), ctx.expr(1)));
+		}
+	}
+
+	/**
+	 * Moves a value into the given register, which has to be free or be the
+	 * register of the value itself. Used where two code paths join and have
+	 * to leave their result in the same register.
+	 * @param from register holding the value, freed afterwards
+	 * @param to register to allocate for the value
+	 */
+	private void moveTo(Indexes from, Indexes to) {
+		registers.free(from);
+		registers.allocate(to);
+		if (from != to) {
+			emit(OpCode.Compute, "Add", from.toString(), Indexes.Zero.toString(), to.toString());
+		}
+	}
+
+	/**
+	 * Emits a binary operation on two evaluated operands. The result is left
+	 * in the register of the left operand, the right one is freed.
+	 */
+	private void compute(String operator, Indexes[] regs) {
+		emit(OpCode.Compute, operator, regs[0].toString(), regs[1].toString(), regs[0].toString());
+		registers.free(regs[1]);
+		result = regs[0];
+	}
+
+	private void emit(Op op) {
+		program.add(op);
+	}
+
+	private void emit(OpCode opCode, String... strings) {
+		emit(new Op(opCode, strings));
+	}
+
+	private void emit(Label label, OpCode opCode, String... strings) {
+		emit(new Op(label, opCode, strings));
+	}
+
+	private void emit(OpCode opCode, Label target, String... strings) {
+		emit(new Op(null, opCode, target, strings));
+	}
+
+	/**
+	 * Whether an instruction emitted so far jumps to the given label.
+	 */
+	private boolean isTarget(Label label) {
+		for (Op op : program) {
+			if (op.getTarget() == label) {
+				return true;
+			}
 		}
+		return false;
 	}
 
-	private String getNewLabelID() {
-		return "#temp#" + labelID++ + "#temp#";
+	private Label getNewLabel() {
+		return new Label(labelID++);
 	}
 }
@@ -0,0 +1,192 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shared memory words of the parfor statements of a program, one block per
+ * statement. The iterations of a parfor statement are split into chunks,
+ * which the thread executing the statement and the helper threads it
+ * starts through the run queue claim one by one under the lock of the
+ * block: the next chunk to claim is followed by the number of chunks, the
+ * number of chunks done, the first iteration, the chunk size and the end
+ * of the iterations. Then comes a result slot for the helpers, which the
+ * dispatcher writes when they finish, the partial result of every
+ * reduction and the values of the variables of the enclosing function the
+ * body reads, which the helpers copy to their own local memory. A busy
+ * flag keeps two threads from executing the same statement at once.
+ * @author tim, martijn
+ *
+ */
+public class ParforTable extends GrammarBaseListener {
+
+	/**
+	 * Names of the reductions.
+	 */
+	public static final String SUM = "sum";
+	public static final String MIN = "min";
+	public static final String MAX = "max";
+
+	/**
+	 * Words of a block before the partial results.
+	 */
+	public static final int HEADER = 10;
+
+	private final ParseTreeProperty<Integer> blocks = new ParseTreeProperty<>();
+	private final ParseTreeProperty<List<String>> captures = new ParseTreeProperty<>();
+	private final List<ParforStatContext> loops = new ArrayList<>();
+	private int end;
+
+	/**
+	 * Whether the given name is a reduction.
+	 */
+	public static boolean isReduction(String name) {
+		return Arrays.asList(SUM, MIN, MAX).contains(name);
+	}
+
+	/**
+	 * Allocates the words of the parfor statements of the given program.
+	 * @param tree program to analyse
+	 * @param start first free word of shared memory
+	 */
+	public void analyse(ParseTree tree, int start) {
+		end = start;
+		new ParseTreeWalker().walk(this, tree);
+	}
+
+	/**
+	 * Returns all parfor statements, in the order of the program.
+	 */
+	public List<ParforStatContext> getLoops() {
+		return loops;
+	}
+
+	/**
+	 * Returns the address of the lock of the given statement.
+	 */
+	public int getLock(ParforStatContext loop) {
+		return blocks.get(loop);
+	}
+
+	/**
+	 * Returns the address of the flag set while a thread executes the
+	 * given statement.
+	 */
+	public int getBusy(ParforStatContext loop) {
+		return blocks.get(loop) + 1;
+	}
+
+	/**
+	 * Returns the address of the next chunk to claim.
+	 */
+	public int getNext(ParforStatContext loop) {
+		return blocks.get(loop) + 2;
+	}
+
+	/**
+	 * Returns the address of the number of chunks.
+	 */
+	public int getChunks(ParforStatContext loop) {
+		return blocks.get(loop) + 3;
+	}
+
+	/**
+	 * Returns the address of the number of chunks done.
+	 */
+	public int getDone(ParforStatContext loop) {
+		return blocks.get(loop) + 4;
+	}
+
+	/**
+	 * Returns the address of the first iteration.
+	 */
+	public int getStart(ParforStatContext loop) {
+		return blocks.get(loop) + 5;
+	}
+
+	/**
+	 * Returns the address of the number of iterations per chunk.
+	 */
+	public int getSize(ParforStatContext loop) {
+		return blocks.get(loop) + 6;
+	}
+
+	/**
+	 * Returns the address of the iteration after the last one.
+	 */
+	public int getLimit(ParforStatContext loop) {
+		return blocks.get(loop) + 7;
+	}
+
+	/**
+	 * Returns the address of the result slot of the helpers, followed by
+	 * their completion flag.
+	 */
+	public int getSlot(ParforStatContext loop) {
+		return blocks.get(loop) + 8;
+	}
+
+	/**
+	 * Returns the address of the partial result of the reduction with the
+	 * given index.
+	 */
+	public int getPartial(ParforStatContext loop, int reduction) {
+		return blocks.get(loop) + HEADER + reduction;
+	}
+
+	/**
+	 * Returns the names the body of the given statement reads that may be
+	 * variables of the enclosing function: all but the loop variable and
+	 * the reductions.
+	 */
+	public List<String> getCaptures(ParforStatContext loop) {
+		return captures.get(loop);
+	}
+
+	/**
+	 * Returns the address of the value of the captured name with the given
+	 * index.
+	 */
+	public int getCaptured(ParforStatContext loop, int capture) {
+		return blocks.get(loop) + HEADER + loop.reduction().size() + capture;
+	}
+
+	/**
+	 * Returns the first word after the parfor statements.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	@Override
+	public void enterParforStat(ParforStatContext ctx) {
+		Set<String> names = new LinkedHashSet<>();
+		collect(ctx.block(), names);
+		names.remove(ctx.ID(0).getText());
+		for (ReductionContext reduction : ctx.reduction()) {
+			names.remove(reduction.ID(1).getText());
+		}
+		loops.add(ctx);
+		blocks.put(ctx, end);
+		captures.put(ctx, new ArrayList<>(names));
+		end += HEADER + ctx.reduction().size() + names.size();
+	}
+
+	private void collect(ParseTree node, Set<String> names) {
+		if (node instanceof IdExprContext) {
+			names.add(((IdExprContext) node).ID().getText());
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			collect(node.getChild(i), names);
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package grammar;
+
+import sprockell.Label;
+import sprockell.OpCode;
+import sprockell.Register.Indexes;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Peephole optimizer for the generated SPRiL instruction stream. Slides a
+ * small window over the list of Op instances and applies rewrite rules
+ * until none of the enabled rules changes the program anymore. Labels of
+ * removed instructions are moved to the next instruction, so jumps never
+ * point to a deleted instruction.
+ * @author tim, martijn
+ *
+ */
+public class PeepholeOptimizer {
+
+	/** Rewrite rules of the optimizer. */
+	public enum Rule {
+		/** Push X followed by Pop Y becomes nothing or a register move. */
+		PUSH_POP,
+		/** Nop instructions are removed, their labels move to the next instruction. */
+		NOP,
+		/** Branches and jumps to the next instruction are removed. */
+		JUMP_NEXT,
+		/** Jumps and branches to a Jump are retargeted to the final target. */
+		JUMP_THREAD,
+		/** Const instructions loading a value the register already holds are removed. */
+		CONST,
+		/** Instructions after a Jump or EndProg that no label points to are removed. */
+		UNREACHABLE;
+	}
+
+	/**
+	 * Rules applied by this optimizer.
+	 */
+	private final Set<Rule> rules;
+
+	/**
+	 * Number of instructions removed per rule over all calls to {@link #optimize}.
+	 */
+	private final Map<Rule, Integer> removed = new EnumMap<>(Rule.class);
+
+	/**
+	 * Creates an optimizer applying all rules.
+	 */
+	public PeepholeOptimizer() {
+		this(EnumSet.allOf(Rule.class));
+	}
+
+	/**
+	 * Creates an optimizer applying only the given rules.
+	 * @param rules rules to apply
+	 */
+	public PeepholeOptimizer(Set<Rule> rules) {
+		this.rules = rules.isEmpty() ? EnumSet.noneOf(Rule.class) : EnumSet.copyOf(rules);
+		for (Rule rule : Rule.values()) {
+			removed.put(rule, 0);
+		}
+	}
+
+	/**
+	 * Applies the enabled rules until the program does not change anymore.
+	 * @param program instructions as emitted by the generator
+	 * @return optimized instructions
+	 */
+	public List<Op> optimize(List<Op> program) {
+		List<Op> ops = new ArrayList<>(program);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Rule rule : rules) {
+				int size = ops.size();
+				boolean ruleChanged;
+				switch (rule) {
+					case PUSH_POP:
+						ruleChanged = pushPop(ops);
+						break;
+					case NOP:
+						ruleChanged = nop(ops);
+						break;
+					case JUMP_NEXT:
+						ruleChanged = jumpNext(ops);
+						break;
+					case JUMP_THREAD:
+						ruleChanged = jumpThread(ops);
+						break;
+					case CONST:
+						ruleChanged = constant(ops);
+						break;
+					case UNREACHABLE:
+						ruleChanged = unreachable(ops);
+						break;
+					default:
+						ruleChanged = false;
+				}
+				removed.put(rule, removed.get(rule) + size - ops.size());
+				changed |= ruleChanged;
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * Returns the number of instructions the given rule removed.
+	 */
+	public int getRemoved(Rule rule) {
+		return removed.get(rule);
+	}
+
+	/**
+	 * Prints the number of removed instructions per enabled rule to stdout.
+	 */
+	public void printReport() {
+		for (Rule rule : rules) {
+			System.out.println("Peephole " + rule + ": removed " + removed.get(rule) + " instruction(s)");
+		}
+	}
+
+	private boolean pushPop(List<Op> ops) {
+		boolean changed = false;
+		for (int i = 0; i < ops.size() - 1; i++) {
+			Op push = ops.get(i);
+			Op pop = ops.get(i + 1);
+			if (push.getOpCode() == OpCode.Push && pop.getOpCode() == OpCode.Pop && pop.getLabel() == null) {
+				String from = push.getOperands()[0];
+				String to = pop.getOperands()[0];
+				remove(ops, i + 1);
+				if (from.equals(to)) {
+					remove(ops, i);
+				} else {
+					ops.set(i, new Op(push.getLabel(), OpCode.Compute, "Add", from, Indexes.Zero.toString(), to));
+				}
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private boolean nop(List<Op> ops) {
+		boolean changed = false;
+		for (int i = 0; i < ops.size() - 1; i++) {
+			if (ops.get(i).getOpCode() == OpCode.Nop) {
+				remove(ops, i);
+				i--;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private boolean jumpNext(List<Op> ops) {
+		boolean changed = false;
+		for (int i = 0; i < ops.size() - 1; i++) {
+			Op op = ops.get(i);
+			if (isJump(op) && op.getTarget() == ops.get(i + 1).getLabel()) {
+				remove(ops, i);
+				i--;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private boolean jumpThread(List<Op> ops) {
+		Map<Label, Op> labelled = new HashMap<>();
+		for (Op op : ops) {
+			if (op.getLabel() != null) {
+				labelled.put(op.getLabel(), op);
+			}
+		}
+		boolean changed = false;
+		for (Op op : ops) {
+			if (!isJump(op)) {
+				continue;
+			}
+			Set<Label> seen = new HashSet<>();
+			Label target = op.getTarget();
+			Op next = labelled.get(target);
+			while (next != null && next.getOpCode() == OpCode.Jump && next.getTarget() != null
+					&& seen.add(target)) {
+				target = next.getTarget();
+				next = labelled.get(target);
+			}
+			if (target != op.getTarget() && !seen.contains(target)) {
+				op.setTarget(target);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private boolean constant(List<Op> ops) {
+		boolean changed = false;
+		Map<String, String> known = new HashMap<>();
+		for (int i = 0; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			if (op.getLabel() != null) {
+				known.clear();
+			}
+			if (op.getOpCode() == OpCode.Const && op.getTarget() == null) {
+				String value = op.getOperands()[0];
+				String register = op.getOperands()[1];
+				if (value.equals(known.get(register))) {
+					remove(ops, i);
+					i--;
+					changed = true;
+					continue;
+				}
+				known.put(register, value);
+			} else if (op.getOpCode() == OpCode.Jump || op.getOpCode() == OpCode.Branch) {
+				known.clear();
+			} else {
+				String defined = op.getDefined();
+				if (defined != null) {
+					known.remove(defined);
+				}
+			}
+		}
+		return changed;
+	}
+
+	private boolean unreachable(List<Op> ops) {
+		Set<Label> referenced = new HashSet<>();
+		for (Op op : ops) {
+			if (op.getTarget() != null) {
+				referenced.add(op.getTarget());
+			}
+		}
+		boolean changed = false;
+		for (int i = 0; i < ops.size() - 1; i++) {
+			OpCode opCode = ops.get(i).getOpCode();
+			if (opCode != OpCode.Jump && opCode != OpCode.EndProg) {
+				continue;
+			}
+			while (i + 1 < ops.size() && !referenced.contains(ops.get(i + 1).getLabel())) {
+				ops.remove(i + 1);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the instruction at the given index. Its label is moved to the
+	 * next instruction, or, if that one already has a label, every jump to
+	 * it is retargeted to the label of the next instruction.
+	 */
+	private void remove(List<Op> ops, int index) {
+		Label label = ops.remove(index).getLabel();
+		if (label == null || index >= ops.size()) {
+			return;
+		}
+		Op next = ops.get(index);
+		if (next.getLabel() == null) {
+			next.setLabel(label);
+		} else {
+			for (Op op : ops) {
+				if (op.getTarget() == label) {
+					op.setTarget(next.getLabel());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether the given Op is a Branch or Jump to a label.
+	 */
+	private boolean isJump(Op op) {
+		return (op.getOpCode() == OpCode.Jump || op.getOpCode() == OpCode.Branch) && op.getTarget() != null;
+	}
+}
@@ -0,0 +1,309 @@
+package grammar;
+
+import sprockell.Label;
+import sprockell.OpCode;
+import sprockell.Register.Indexes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Schedules the instructions of each basic block to hide the latency of
+ * shared memory reads. The generator emits every Read directly followed by
+ * its Receive, which stalls the core for the whole round trip. This
+ * scheduler issues Reads as early as possible, so several can be
+ * outstanding, and moves independent instructions in front of each
+ * Receive.
+ * <p>
+ * A reply that arrives while the core is not executing a Receive is lost,
+ * so the latency model of the target SystemConfig bounds how long a
+ * Receive may be delayed. A reply comes in at the earliest bufferDelay + 1
+ * cycles after its Read, so with no other read outstanding the Receive has
+ * to follow its Read within bufferDelay instructions. Replies come in
+ * order and at most one per multiplier cycles, so a Receive for a Read that
+ * was issued while another one was outstanding has to follow the previous
+ * Receive within multiplier - 1 instructions. A block is left as it is if
+ * no schedule meeting these bounds is found.
+ * <p>
+ * Only Reads of shared variables are moved. Labels, jumps, branches,
+ * TestAndSet and accesses to other addresses, such as locks and stdio,
+ * stay where they are and end a block.
+ * @author tim, martijn
+ *
+ */
+public class ReadScheduler {
+
+	/**
+	 * Cycles a reply spends in the reply buffer, SystemConfig.bufferDelay.
+	 */
+	private final int bufferDelay;
+
+	/**
+	 * Cycles per handled shared memory request, SystemConfig.multiplier.
+	 */
+	private final int multiplier;
+
+	/**
+	 * Addresses of the shared variables, as SPRiL operands, e.g. "(Addr 4)".
+	 */
+	private final Set<String> variables;
+
+	/**
+	 * Creates a scheduler for the given system configuration.
+	 * @param bufferDelay bufferDelay of the SystemConfig
+	 * @param multiplier multiplier of the SystemConfig
+	 * @param variables addresses of the shared variables, e.g. "(Addr 4)"
+	 */
+	public ReadScheduler(int bufferDelay, int multiplier, Set<String> variables) {
+		this.bufferDelay = bufferDelay;
+		this.multiplier = multiplier;
+		this.variables = variables;
+	}
+
+	/**
+	 * Schedules every basic block of the given program.
+	 * @param program instructions with labels, before label resolution
+	 * @return scheduled instructions
+	 */
+	public List<Op> schedule(List<Op> program) {
+		List<Op> result = new ArrayList<>();
+		List<Op> block = new ArrayList<>();
+		for (int i = 0; i < program.size(); i++) {
+			Op op = program.get(i);
+			if (op.getLabel() != null) {
+				result.addAll(scheduleBlock(block));
+				block.clear();
+			}
+			if (isFixed(op, i > 0 ? program.get(i - 1) : null)) {
+				result.addAll(scheduleBlock(block));
+				block.clear();
+				result.add(op);
+			} else {
+				block.add(op);
+			}
+		}
+		result.addAll(scheduleBlock(block));
+		return result;
+	}
+
+	/**
+	 * Whether the given instruction ends a block and keeps its place.
+	 */
+	private boolean isFixed(Op op, Op previous) {
+		switch (op.getOpCode()) {
+			case Read:
+				return !variables.contains(op.getOperands()[0]);
+			case Write:
+				return !variables.contains(op.getOperands()[1]);
+			case Receive:
+				return previous == null || previous.getOpCode() != OpCode.Read
+						|| !variables.contains(previous.getOperands()[0]);
+			case Compute:
+				return op.getOperands()[3].equals(Indexes.PC.toString());
+			case TestAndSet:
+			case Jump:
+			case Branch:
+			case EndProg:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private List<Op> scheduleBlock(List<Op> block) {
+		if (!isPaired(block)) {
+			return new ArrayList<>(block);
+		}
+		int n = block.size();
+		BitSet[] preds = predecessors(block);
+
+		Label label = block.get(0).getLabel();
+		block.get(0).setLabel(null);
+
+		int[] position = new int[n];
+		boolean[] concurrent = new boolean[n];
+		BitSet scheduled = new BitSet(n);
+		Deque<Integer> outstanding = new ArrayDeque<>();
+		List<Op> order = new ArrayList<>();
+		int lastReceive = -1;
+		boolean failed = false;
+
+		while (order.size() < n && !failed) {
+			int pos = order.size();
+			int next = -1;
+
+			// the first outstanding Receive, when it cannot wait any longer
+			if (!outstanding.isEmpty()) {
+				int receive = outstanding.peek() + 1;
+				if (ready(receive, preds, scheduled)
+						&& pos == deadline(outstanding.peek(), position, concurrent, lastReceive)) {
+					next = receive;
+				}
+			}
+			// a Read, as early as possible
+			for (int i = 0; next < 0 && i < n; i++) {
+				if (!scheduled.get(i) && block.get(i).getOpCode() == OpCode.Read && ready(i, preds, scheduled)
+						&& outstanding.size() < bufferDelay) {
+					position[i] = pos;
+					concurrent[i] = !outstanding.isEmpty();
+					outstanding.add(i);
+					scheduled.set(i);
+					if (feasible(outstanding, preds, scheduled, position, concurrent, pos + 1, lastReceive)) {
+						next = i;
+					}
+					outstanding.removeLast();
+					scheduled.clear(i);
+				}
+			}
+			// any other instruction that does not make a Receive too late
+			for (int i = 0; next < 0 && i < n; i++) {
+				OpCode opCode = block.get(i).getOpCode();
+				if (!scheduled.get(i) && opCode != OpCode.Read && opCode != OpCode.Receive
+						&& ready(i, preds, scheduled)) {
+					scheduled.set(i);
+					if (feasible(outstanding, preds, scheduled, position, concurrent, pos + 1, lastReceive)) {
+						next = i;
+					}
+					scheduled.clear(i);
+				}
+			}
+			// otherwise receive the first outstanding value
+			if (next < 0 && !outstanding.isEmpty() && ready(outstanding.peek() + 1, preds, scheduled)) {
+				next = outstanding.peek() + 1;
+			}
+
+			if (next < 0) {
+				failed = true;
+			} else {
+				if (block.get(next).getOpCode() == OpCode.Read) {
+					position[next] = pos;
+					concurrent[next] = !outstanding.isEmpty();
+					outstanding.add(next);
+				} else if (block.get(next).getOpCode() == OpCode.Receive) {
+					failed = pos > deadline(outstanding.remove(), position, concurrent, lastReceive);
+					lastReceive = pos;
+				}
+				scheduled.set(next);
+				order.add(block.get(next));
+			}
+		}
+
+		List<Op> result = failed ? new ArrayList<>(block) : order;
+		result.get(0).setLabel(label);
+		return result;
+	}
+
+	/**
+	 * Whether the block has Reads, each directly followed by its Receive.
+	 */
+	private boolean isPaired(List<Op> block) {
+		boolean reads = false;
+		for (int i = 0; i < block.size(); i++) {
+			boolean read = block.get(i).getOpCode() == OpCode.Read;
+			boolean received = i + 1 < block.size() && block.get(i + 1).getOpCode() == OpCode.Receive;
+			if (read != received) {
+				return false;
+			}
+			reads |= read;
+		}
+		return reads;
+	}
+
+	/**
+	 * Returns the last position at which the Receive of the given Read can
+	 * be scheduled.
+	 */
+	private int deadline(int read, int[] position, boolean[] concurrent, int lastReceive) {
+		return concurrent[read] ? lastReceive + multiplier : position[read] + bufferDelay + 1;
+	}
+
+	/**
+	 * Whether the Receives of all outstanding Reads can still be scheduled
+	 * in time, when only the instructions they depend on are scheduled
+	 * before them.
+	 */
+	private boolean feasible(Deque<Integer> outstanding, BitSet[] preds, BitSet scheduled, int[] position,
+			boolean[] concurrent, int pos, int lastReceive) {
+		BitSet done = (BitSet) scheduled.clone();
+		for (int read : outstanding) {
+			int receive = read + 1;
+			BitSet forced = (BitSet) preds[receive].clone();
+			forced.andNot(done);
+			pos += forced.cardinality();
+			if (pos > deadline(read, position, concurrent, lastReceive)) {
+				return false;
+			}
+			done.or(forced);
+			done.set(receive);
+			lastReceive = pos;
+			pos++;
+		}
+		return true;
+	}
+
+	private boolean ready(int index, BitSet[] preds, BitSet scheduled) {
+		BitSet missing = (BitSet) preds[index].clone();
+		missing.andNot(scheduled);
+		return missing.isEmpty();
+	}
+
+	/**
+	 * Computes for every instruction of the block all instructions that have
+	 * to be executed before it: through registers, local memory, the order
+	 * of shared memory requests and the order of Receives.
+	 */
+	private BitSet[] predecessors(List<Op> block) {
+		int n = block.size();
+		BitSet[] preds = new BitSet[n];
+		for (int i = 0; i < n; i++) {
+			preds[i] = new BitSet(n);
+			Op op = block.get(i);
+			for (int j = 0; j < i; j++) {
+				Op before = block.get(j);
+				if (dependsOn(op, before) || (op.getOpCode() == OpCode.Receive && j == i - 1)) {
+					preds[i].set(j);
+					preds[i].or(preds[j]);
+				}
+			}
+		}
+		return preds;
+	}
+
+	private boolean dependsOn(Op op, Op before) {
+		String defined = op.getDefined();
+		String definedBefore = before.getDefined();
+		List<String> used = op.getUsed();
+		if (definedBefore != null && !definedBefore.equals(Indexes.Zero.toString())
+				&& (used.contains(definedBefore) || definedBefore.equals(defined))) {
+			return true;
+		} else if (defined != null && before.getUsed().contains(defined)) {
+			return true;
+		} else if (isLocal(op) && isLocal(before) && (writesLocal(op) || writesLocal(before))) {
+			return true;
+		} else if (isRequest(op) && isRequest(before)) {
+			return true;
+		}
+		return op.getOpCode() == OpCode.Receive && before.getOpCode() == OpCode.Receive;
+	}
+
+	private boolean isLocal(Op op) {
+		OpCode opCode = op.getOpCode();
+		return opCode == OpCode.Load || writesLocal(op);
+	}
+
+	/**
+	 * Whether the instruction writes local memory or the stack pointer.
+	 */
+	private boolean writesLocal(Op op) {
+		OpCode opCode = op.getOpCode();
+		return opCode == OpCode.Store || opCode == OpCode.Push || opCode == OpCode.Pop;
+	}
+
+	private boolean isRequest(Op op) {
+		return op.getOpCode() == OpCode.Read || op.getOpCode() == OpCode.Write;
+	}
+}
@@ -0,0 +1,293 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.misc.NotNull;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import sprockell.Register.Indexes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates the general purpose registers RegA..RegE to expression
+ * temporaries. Expressions are numbered using Sethi-Ullman numbering:
+ * the number of an expression is the amount of registers needed to
+ * evaluate it without storing anything on the stack. The generator
+ * evaluates the operand with the highest number first, and only spills
+ * to the stack when the registers that are left do not suffice.
+ * @author tim, martijn
+ *
+ */
+public class RegisterAllocator extends GrammarBaseVisitor<Integer> {
+
+	/**
+	 * Registers available for expression evaluation, in order of allocation.
+	 */
+	public static final Indexes[] REGISTERS = new Indexes[]{
+			Indexes.RegA, Indexes.RegB, Indexes.RegC, Indexes.RegD, Indexes.RegE
+	};
+
+	/**
+	 * Registers the exponent loop needs: base, exponent, result and a flag.
+	 */
+	private static final int EXP_NEED = 4;
+
+	/**
+	 * Registers a power of a constant power of two needs: exponent, result
+	 * and a flag.
+	 */
+	private static final int SHIFT_NEED = 3;
+
+	/**
+	 * Registers a join needs: the backoff delay and a counter.
+	 */
+	private static final int JOIN_NEED = 2;
+
+	/**
+	 * Registers a receive needs: the head, the backoff delay and the value.
+	 */
+	private static final int RECEIVE_NEED = 3;
+
+	/**
+	 * Constant expressions, which are loaded with a single Const.
+	 */
+	private final ConstantFolder constants;
+
+	/**
+	 * Sethi-Ullman numbers of the expressions seen so far.
+	 */
+	private final ParseTreeProperty<Integer> needs = new ParseTreeProperty<>();
+
+	/**
+	 * Registers currently holding a value, indexed like REGISTERS.
+	 */
+	private final boolean[] used = new boolean[REGISTERS.length];
+
+	public RegisterAllocator(ConstantFolder constants) {
+		this.constants = constants;
+	}
+
+	/**
+	 * Returns the number of registers needed to evaluate the given
+	 * expression without spilling.
+	 * @param expr expression node
+	 * @return Sethi-Ullman number of the expression
+	 */
+	public int need(ParseTree expr) {
+		Integer need = needs.get(expr);
+		if (need == null) {
+			need = constants.isConstant(expr) ? 1 : expr.accept(this);
+			needs.put(expr, need);
+		}
+		return need;
+	}
+
+	/**
+	 * Marks an expression of which the value is loaded from memory with a
+	 * single instruction, e.g. because it was hoisted out of a loop.
+	 */
+	public void setLoaded(ParseTree expr) {
+		needs.put(expr, 1);
+	}
+
+	/**
+	 * Forgets the numbers of the given subtree, e.g. after it was generated
+	 * with some of its expressions marked as loaded.
+	 */
+	public void forget(ParseTree tree) {
+		needs.removeFrom(tree);
+		for (int i = 0; i < tree.getChildCount(); i++) {
+			forget(tree.getChild(i));
+		}
+	}
+
+	/**
+	 * Takes the first free register.
+	 * @return allocated register
+	 * @throws IllegalStateException if all registers are in use
+	 */
+	public Indexes allocate() {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (!used[i]) {
+				used[i] = true;
+				return REGISTERS[i];
+			}
+		}
+		throw new IllegalStateException("No free registers left");
+	}
+
+	/**
+	 * Takes the given register, e.g. to leave a value in the same register
+	 * on two code paths.
+	 * @param register register to allocate
+	 * @throws IllegalStateException if the register is already in use
+	 */
+	public void allocate(Indexes register) {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (REGISTERS[i] == register) {
+				if (used[i]) {
+					throw new IllegalStateException(register + " is already in use");
+				}
+				used[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns a register to the pool of free registers.
+	 * @param register register that no longer holds a live value
+	 */
+	public void free(Indexes register) {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (REGISTERS[i] == register) {
+				used[i] = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of registers that can still be allocated.
+	 */
+	public int available() {
+		int available = 0;
+		for (boolean u : used) {
+			if (!u) {
+				available++;
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * Returns the registers that currently hold a value.
+	 */
+	public List<Indexes> inUse() {
+		List<Indexes> result = new ArrayList<>();
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (used[i]) {
+				result.add(REGISTERS[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether the given folded value is the constant 0, which can be read
+	 * from the Zero register.
+	 * @param value folded value, or null if the expression is not constant
+	 */
+	public static boolean isZero(Value value) {
+		return value != null && value.getValue() == 0;
+	}
+
+	/**
+	 * Sethi-Ullman number of a node with two operands: one more than the
+	 * operands if they need the same amount, otherwise the largest.
+	 */
+	private int binary(ParseTree left, ParseTree right) {
+		int l = need(left);
+		int r = need(right);
+		return l == r ? l + 1 : Math.max(l, r);
+	}
+
+	@Override
+	public Integer visitFuncCall(@NotNull FuncCallContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitJoinExpr(@NotNull JoinExprContext ctx) {
+		return JOIN_NEED;
+	}
+
+	@Override
+	public Integer visitLockedExpr(@NotNull LockedExprContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitReceiveExpr(@NotNull ReceiveExprContext ctx) {
+		return RECEIVE_NEED;
+	}
+
+	@Override
+	public Integer visitPlusExpr(@NotNull PlusExprContext ctx) {
+		return binary(ctx.expr(0), ctx.expr(1));
+	}
+
+	@Override
+	public Integer visitMultExpr(@NotNull MultExprContext ctx) {
+		return binary(ctx.expr(0), ctx.expr(1));
+	}
+
+	@Override
+	public Integer visitExpExpr(@NotNull ExpExprContext ctx) {
+		if (constants.isConstant(ctx.expr(1))) {
+			return Math.max(need(ctx.expr(0)), 2);
+		} else if (constants.isConstant(ctx.expr(0))
+				&& ConstantFolder.isShiftBase(constants.fold(ctx.expr(0)).getValue())) {
+			return Math.max(need(ctx.expr(1)), SHIFT_NEED);
+		}
+		return Math.max(binary(ctx.expr(0), ctx.expr(1)), EXP_NEED);
+	}
+
+	/**
+	 * The left operand of && and || is no longer needed once the right one
+	 * is evaluated, so the operands never hold a register at the same time.
+	 */
+	@Override
+	public Integer visitBoolExpr(@NotNull BoolExprContext ctx) {
+		return Math.max(need(ctx.expr(0)), need(ctx.expr(1)));
+	}
+
+	/**
+	 * A comparison with the constant 0 reads the Zero register and only
+	 * needs the registers of its other operand.
+	 */
+	@Override
+	public Integer visitCmpExpr(@NotNull CmpExprContext ctx) {
+		if (isZero(constants.fold(ctx.expr(1)))) {
+			return need(ctx.expr(0));
+		} else if (isZero(constants.fold(ctx.expr(0)))) {
+			return need(ctx.expr(1));
+		}
+		return binary(ctx.expr(0), ctx.expr(1));
+	}
+
+	@Override
+	public Integer visitPrfExpr(@NotNull PrfExprContext ctx) {
+		return need(ctx.expr());
+	}
+
+	@Override
+	public Integer visitParExpr(@NotNull ParExprContext ctx) {
+		return need(ctx.expr());
+	}
+
+	@Override
+	public Integer visitIdExpr(@NotNull IdExprContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitNumExpr(@NotNull NumExprContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitEidExpr(@NotNull EidExprContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitTrueExpr(@NotNull TrueExprContext ctx) {
+		return 1;
+	}
+
+	@Override
+	public Integer visitFalseExpr(@NotNull FalseExprContext ctx) {
+		return 1;
+	}
+}
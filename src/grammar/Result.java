@@ -22,6 +22,11 @@ public class Result {
 	 */
 	private final ParseTreeProperty<Integer> offsets = new ParseTreeProperty<>();
 
+	/**
+	 * Functions declared in the program.
+	 */
+	private Functions functions;
+
 	/**
 	 * Adds an association from parse tree node to the flow graph entry.
 	 */
@@ -67,4 +72,19 @@ public class Result {
 	public Type getType(ParseTree node) {
 		return this.types.get(node);
 	}
+
+	/**
+	 * Sets the functions declared in the program.
+	 */
+	public void setFunctions(Functions functions) {
+		this.functions = functions;
+	}
+
+	/**
+	 * Returns the functions declared in the program, of which
+	 * the contexts hold their bodies.
+	 */
+	public Functions getFunctions() {
+		return this.functions;
+	}
 }
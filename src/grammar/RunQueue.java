@@ -0,0 +1,131 @@
+package grammar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layout of the run queue in shared memory, through which the cores hand
+ * out the threads started by run statements. A run statement appends a
+ * descriptor to the queue: the entry address of the function, the address
+ * of the result slot of its run ID and the arguments, in consecutive
+ * words. The result slot of a run ID is followed by its completion flag,
+ * which the run statement clears and the core running the thread sets
+ * after writing the return value. Idle cores take descriptors from the head of the queue. Descriptors
+ * are never reused, the queue only grows, so it is placed after all other
+ * shared words. The head, the tail and the number of running threads are
+ * only changed while holding the queue lock.
+ * @author tim, martijn
+ *
+ */
+public class RunQueue {
+
+	/**
+	 * Words per run ID: the return value and the completion flag.
+	 */
+	public static final int SLOT_SIZE = 2;
+
+	/**
+	 * Words of a descriptor before its arguments: the entry address and the
+	 * address of the result slot.
+	 */
+	public static final int HEADER = 2;
+
+	private final int lock;
+	private final int head;
+	private final int tail;
+	private final int running;
+	private final int mainDone;
+	private final Map<String, Integer> slots = new HashMap<>();
+	private final int descriptorSize;
+	private final int base;
+
+	/**
+	 * Lays out the queue from the given shared memory address.
+	 * @param start first free word of shared memory
+	 * @param runs all run statements of the program
+	 */
+	public RunQueue(int start, List<GrammarParser.RunStatContext> runs) {
+		int next = start;
+		lock = next++;
+		head = next++;
+		tail = next++;
+		running = next++;
+		mainDone = next++;
+		int arguments = 0;
+		for (GrammarParser.RunStatContext run : runs) {
+			if (!slots.containsKey(run.ID(0).getText())) {
+				slots.put(run.ID(0).getText(), next);
+				next += SLOT_SIZE;
+			}
+			arguments = Math.max(arguments, run.expr().size());
+		}
+		descriptorSize = HEADER + arguments;
+		base = next;
+	}
+
+	/**
+	 * Returns the address of the lock guarding the head, tail and running
+	 * count.
+	 */
+	public int getLock() {
+		return lock;
+	}
+
+	/**
+	 * Returns the address of the index of the first descriptor not taken yet.
+	 */
+	public int getHead() {
+		return head;
+	}
+
+	/**
+	 * Returns the address of the index of the next descriptor to be added.
+	 */
+	public int getTail() {
+		return tail;
+	}
+
+	/**
+	 * Returns the address of the number of threads taken from the queue
+	 * that have not finished yet.
+	 */
+	public int getRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the address of the flag set when the main thread has finished.
+	 */
+	public int getMainDone() {
+		return mainDone;
+	}
+
+	/**
+	 * Returns the address of the result slot of the given run ID.
+	 */
+	public int getSlot(String id) {
+		return slots.get(id);
+	}
+
+	/**
+	 * Returns the address of the completion flag of the given run ID.
+	 */
+	public int getDone(String id) {
+		return slots.get(id) + 1;
+	}
+
+	/**
+	 * Returns the number of words of a descriptor.
+	 */
+	public int getDescriptorSize() {
+		return descriptorSize;
+	}
+
+	/**
+	 * Returns the address of the first descriptor.
+	 */
+	public int getBase() {
+		return base;
+	}
+}
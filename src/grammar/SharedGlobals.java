@@ -0,0 +1,285 @@
+package grammar;
+
+import grammar.GrammarParser.*;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thread-escape analysis for global variables. The threads of a program
+ * are the main thread, executing the top level statements and the main
+ * function, and one thread per run statement, executing the function it
+ * runs. A thread also executes every function it (indirectly) calls.
+ * A global variable is shared if it is declared, read or written by more
+ * than one thread. Only shared globals have to live in shared memory, the
+ * others can be kept in the local memory of the core running their thread.
+ * A run statement in a loop or outside the main thread may start any
+ * number of threads, which are all counted. The body of a parfor statement
+ * counts as any number of threads too, as helper threads execute it. Locks
+ * are counted in the same way: a lock that only one thread locks, unlocks
+ * or queries can never be contended. So are the two ends of a channel, the
+ * threads sending to it and those receiving from it.
+ * @author tim, martijn
+ *
+ */
+public class SharedGlobals extends GrammarBaseListener {
+
+	/**
+	 * Name of the context holding the top level statements.
+	 */
+	private static final String TOP_LEVEL = "";
+
+	/**
+	 * Name of the function the main thread calls after the top level statements.
+	 */
+	private static final String MAIN = "main";
+
+	/**
+	 * Thread count standing for "more than one".
+	 */
+	private static final int MANY = 2;
+
+	/**
+	 * Prefix of the names under which the uses of locks are recorded, which
+	 * cannot clash with a variable.
+	 */
+	private static final String LOCK = "lock ";
+
+	/**
+	 * Prefixes of the names under which sends to and receives from
+	 * channels are recorded.
+	 */
+	private static final String SEND = "send ";
+	private static final String RECEIVE = "receive ";
+
+	/**
+	 * Prefix of the names of the contexts holding the bodies of parfor
+	 * statements.
+	 */
+	private static final String PARFOR = "parfor ";
+
+	/**
+	 * Names of all declared global variables.
+	 */
+	private final Set<String> globals = new HashSet<>();
+
+	/**
+	 * Names of all locks and channel ends, with their prefix.
+	 */
+	private final Set<String> locks = new HashSet<>();
+
+	/**
+	 * Variables accessed directly per function, the top level included.
+	 */
+	private final Map<String, Set<String>> accesses = new HashMap<>();
+
+	/**
+	 * Functions called directly per function, the top level included.
+	 */
+	private final Map<String, Set<String>> calls = new HashMap<>();
+
+	/**
+	 * Number of threads started per function.
+	 */
+	private final Map<String, Integer> threads = new HashMap<>();
+
+	/**
+	 * Number of threads per global variable.
+	 */
+	private final Map<String, Integer> users = new HashMap<>();
+
+	private final Deque<String> functions = new ArrayDeque<>();
+	private int loops = 0;
+	private int parfors = 0;
+
+	/**
+	 * Analyses the given program.
+	 * @param tree program to analyse
+	 */
+	public void analyse(ParseTree tree) {
+		functions.push(TOP_LEVEL);
+		new ParseTreeWalker().walk(this, tree);
+
+		Set<String> main = new HashSet<>();
+		main.add(TOP_LEVEL);
+		main.add(MAIN);
+		count(main, 1);
+		for (Map.Entry<String, Integer> thread : threads.entrySet()) {
+			Set<String> run = new HashSet<>();
+			run.add(thread.getKey());
+			count(run, thread.getValue());
+		}
+	}
+
+	/**
+	 * Whether the given global variable is accessed by more than one thread.
+	 */
+	public boolean isShared(String id) {
+		return users.getOrDefault(id, 0) > 1;
+	}
+
+	/**
+	 * Whether the given lock is used by more than one thread.
+	 */
+	public boolean isSharedLock(String name) {
+		return users.getOrDefault(LOCK + name, 0) > 1;
+	}
+
+	/**
+	 * Whether more than one thread sends to the given channel.
+	 */
+	public boolean hasManyProducers(String channel) {
+		return users.getOrDefault(SEND + channel, 0) > 1;
+	}
+
+	/**
+	 * Whether more than one thread receives from the given channel.
+	 */
+	public boolean hasManyConsumers(String channel) {
+		return users.getOrDefault(RECEIVE + channel, 0) > 1;
+	}
+
+	/**
+	 * Returns the number of distinct global variables of the program.
+	 */
+	public int getGlobalCount() {
+		return globals.size();
+	}
+
+	/**
+	 * Adds the given number of threads to the users of all globals accessed
+	 * from the given functions and the functions they call.
+	 */
+	private void count(Set<String> entries, int count) {
+		Set<String> reached = new HashSet<>();
+		Deque<String> todo = new ArrayDeque<>(entries);
+		while (!todo.isEmpty()) {
+			String function = todo.pop();
+			if (reached.add(function)) {
+				todo.addAll(calls.getOrDefault(function, new HashSet<>()));
+			}
+		}
+		Set<String> used = new HashSet<>();
+		for (String function : reached) {
+			used.addAll(accesses.getOrDefault(function, new HashSet<>()));
+		}
+		for (String id : used) {
+			if (globals.contains(id) || locks.contains(id)) {
+				users.put(id, users.getOrDefault(id, 0) + count);
+			}
+		}
+	}
+
+	private void access(String id) {
+		accesses.computeIfAbsent(functions.peek(), k -> new HashSet<>()).add(id);
+	}
+
+	private void useLock(String name) {
+		locks.add(LOCK + name);
+		access(LOCK + name);
+	}
+
+	private void useChannel(String end) {
+		locks.add(end);
+		access(end);
+	}
+
+	@Override
+	public void enterFuncStat(FuncStatContext ctx) {
+		functions.push(ctx.ID(0).getText());
+	}
+
+	@Override
+	public void exitFuncStat(FuncStatContext ctx) {
+		functions.pop();
+	}
+
+	@Override
+	public void enterBlock(BlockContext ctx) {
+		if (ctx.getParent() instanceof ParforStatContext) {
+			String body = PARFOR + parfors++;
+			threads.put(body, MANY);
+			functions.push(body);
+		}
+	}
+
+	@Override
+	public void exitBlock(BlockContext ctx) {
+		if (ctx.getParent() instanceof ParforStatContext) {
+			functions.pop();
+		}
+	}
+
+	@Override
+	public void enterWhileStat(WhileStatContext ctx) {
+		loops++;
+	}
+
+	@Override
+	public void exitWhileStat(WhileStatContext ctx) {
+		loops--;
+	}
+
+	@Override
+	public void enterDeclStat(DeclStatContext ctx) {
+		if (ctx.GLOBAL() != null) {
+			globals.add(ctx.ID().getText());
+			access(ctx.ID().getText());
+		}
+	}
+
+	@Override
+	public void enterAssStat(AssStatContext ctx) {
+		access(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterIdExpr(IdExprContext ctx) {
+		access(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterFuncCall(FuncCallContext ctx) {
+		calls.computeIfAbsent(functions.peek(), k -> new HashSet<>()).add(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterRunStat(RunStatContext ctx) {
+		String caller = functions.peek();
+		boolean once = loops == 0 && (caller.equals(TOP_LEVEL) || caller.equals(MAIN));
+		String function = ctx.ID(1).getText();
+		threads.put(function, Math.min(threads.getOrDefault(function, 0) + (once ? 1 : MANY), MANY));
+	}
+
+	@Override
+	public void enterLockStat(LockStatContext ctx) {
+		useLock(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterUnlockStat(UnlockStatContext ctx) {
+		useLock(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterLockedExpr(LockedExprContext ctx) {
+		useLock(ctx.ID().getText());
+	}
+
+	@Override
+	public void enterSendStat(SendStatContext ctx) {
+		useChannel(SEND + ctx.ID().getText());
+	}
+
+	@Override
+	public void enterReceiveExpr(ReceiveExprContext ctx) {
+		useChannel(RECEIVE + ctx.ID().getText());
+	}
+}
@@ -0,0 +1,148 @@
+package grammar;
+
+import sprockell.OpCode;
+import sprockell.Register.Indexes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Removes redundant accesses to shared variables between synchronisation
+ * points. A Read of a variable of which the value is still in a register,
+ * because it was read or written before, becomes a register move. A Write
+ * that is overwritten before anything reads the variable is removed.
+ * Every label, jump, branch, TestAndSet and access to an address that is
+ * not a shared variable (a lock, the run queue, stdio, a Deref) is a
+ * synchronisation point: all knowledge is dropped there and pending
+ * writes are kept. Lock, unlock, join, run and function calls all
+ * contain one of those.
+ * @author tim, martijn
+ *
+ */
+public class SharedMemoryOptimizer {
+
+	/**
+	 * Addresses of the shared variables, as SPRiL operands, e.g. "(Addr 4)".
+	 */
+	private final Set<String> variables;
+
+	private int removedReads = 0;
+	private int removedWrites = 0;
+
+	/**
+	 * Creates an optimizer for the given shared variables.
+	 * @param variables addresses of the shared variables, e.g. "(Addr 4)"
+	 */
+	public SharedMemoryOptimizer(Set<String> variables) {
+		this.variables = variables;
+	}
+
+	/**
+	 * Removes the redundant reads and writes from the given program.
+	 * @param program instructions as emitted by the generator
+	 * @return instructions without the redundant accesses
+	 */
+	public List<Op> optimize(List<Op> program) {
+		List<Op> ops = new ArrayList<>(program);
+		Map<String, String> values = new HashMap<>(); // variable -> register holding its value
+		Map<String, Integer> pending = new HashMap<>(); // variable -> index of a write nobody read yet
+		for (int i = 0; i < ops.size(); i++) {
+			Op op = ops.get(i);
+			if (op.getLabel() != null) {
+				values.clear();
+				pending.clear();
+			}
+			String[] operands = op.getOperands();
+			switch (op.getOpCode()) {
+				case Read:
+					if (!variables.contains(operands[0])) {
+						values.clear();
+						pending.clear();
+					} else if (i + 1 < ops.size() && ops.get(i + 1).getOpCode() == OpCode.Receive
+							&& ops.get(i + 1).getLabel() == null) {
+						String register = ops.get(i + 1).getOperands()[0];
+						String value = values.get(operands[0]);
+						if (value == null) {
+							pending.remove(operands[0]);
+						} else {
+							drop(ops, i);
+							if (value.equals(register)) {
+								drop(ops, i + 1);
+							} else {
+								ops.set(i + 1, new Op(OpCode.Compute, "Add", value, Indexes.Zero.toString(), register));
+							}
+							removedReads++;
+						}
+						forget(values, register);
+						values.put(operands[0], register);
+						i++;
+					} else {
+						values.remove(operands[0]);
+						pending.remove(operands[0]);
+					}
+					break;
+				case Write:
+					if (!variables.contains(operands[1])) {
+						values.clear();
+						pending.clear();
+					} else {
+						Integer overwritten = pending.put(operands[1], i);
+						if (overwritten != null) {
+							drop(ops, overwritten);
+							removedWrites++;
+						}
+						values.put(operands[1], operands[0]);
+					}
+					break;
+				case TestAndSet:
+				case Jump:
+				case Branch:
+				case EndProg:
+					values.clear();
+					pending.clear();
+					break;
+				default:
+					String defined = op.getDefined();
+					if (defined != null) {
+						forget(values, defined);
+					}
+			}
+		}
+		ops.removeIf(Objects::isNull);
+		return ops;
+	}
+
+	/**
+	 * Returns the number of Read and Receive pairs that were removed or
+	 * replaced by a register move.
+	 */
+	public int getRemovedReads() {
+		return removedReads;
+	}
+
+	/**
+	 * Returns the number of Writes that were removed.
+	 */
+	public int getRemovedWrites() {
+		return removedWrites;
+	}
+
+	/**
+	 * Removes the instruction at the given index, keeping its label on a Nop.
+	 */
+	private void drop(List<Op> ops, int index) {
+		Op op = ops.get(index);
+		ops.set(index, op.getLabel() == null ? null : new Op(op.getLabel(), OpCode.Nop));
+	}
+
+	/**
+	 * Forgets all variables of which the value was in the given register.
+	 */
+	private void forget(Map<String, String> values, String register) {
+		values.values().removeIf(register::equals);
+	}
+}
@@ -2,13 +2,14 @@ package grammar;
 
 import grammar.exception.TypeException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class SymbolTable {
 
-	private final static int functionOffset = 1;
 	// Global Scope
 	private Map<String, Type> globalTypes = new HashMap<>();
 	private Map<String, Integer> globalOffsets = new HashMap<>();
@@ -18,35 +19,39 @@ public class SymbolTable {
 	private Stack<Integer> size = new Stack<>();
 	private Stack<Map<String, Type>> types = new Stack<>();
 	private Stack<Integer> arps = new Stack<>();
+	// Depths of the scopes that hide the scopes they are nested in
+	private Stack<Integer> frames = new Stack<>();
 
 	/**
-	 * Adds a next deeper scope level.
+	 * Adds a next deeper scope level. Its variables are placed after those
+	 * of the enclosing scope.
 	 */
 	public void openScope() {
-		types.push(new HashMap<>());
-		offsets.push(new HashMap<>());
-		size.push(0);
-		int totalsize = 0;
-		for (Integer i : size) {
-			totalsize += i;
-		}
-		arps.push(totalsize);
+		openScope(arps.isEmpty() ? 0 : arps.peek() + size.peek());
 	}
 
 	/**
-	 * Open a new scope with a given size. Used in the generator 
-	 * phase of the compiler.
-	 * @param parameterLength length in words of the parameters.
+	 * Open a new scope of which the variables are placed from the given
+	 * offset on. Used in the generator phase of the compiler, to give
+	 * every function its own area in local memory.
+	 * @param arp offset of the first variable of the scope
 	 */
-	public void openScope(int parameterLength /*in words*/) {
+	public void openScope(int arp) {
 		types.push(new HashMap<>());
 		offsets.push(new HashMap<>());
 		size.push(0);
-		int totalsize = 0;
-		for (Integer i : size) {
-			totalsize += i;
-		}
-		arps.push(totalsize + functionOffset + parameterLength);
+		arps.push(arp);
+	}
+
+	/**
+	 * Adds a next deeper scope level that hides the enclosing scopes, e.g.
+	 * for the body of an inlined function. Only its own variables and the
+	 * globals can be found, but its variables are still placed after those
+	 * of the enclosing scopes.
+	 */
+	public void openFrame() {
+		openScope();
+		frames.push(types.size() - 1);
 	}
 
 	/**
@@ -55,6 +60,9 @@ public class SymbolTable {
 	 * @throws RuntimeException if the table only type the outer scope.
 	 */
 	public void closeScope() {
+		if (!frames.isEmpty() && frames.peek() == types.size() - 1) {
+			frames.pop();
+		}
 		types.pop();
 		offsets.pop();
 		size.pop();
@@ -170,7 +178,7 @@ public class SymbolTable {
 	 */
 	public Type type(String id) {
 		Type contained = null;
-		for (int i = types.size() - 1; i >= 0; i--) {
+		for (int i = types.size() - 1; i >= bottom(); i--) {
 			if (types.get(i).containsKey(id)) {
 				contained = types.get(i).get(id);
 				break;
@@ -192,9 +200,9 @@ public class SymbolTable {
 	 */
 	public Integer offset(String id) {
 		Integer offset = null;
-		for (int i = offsets.size() - 1; i >= 0; i--) {
+		for (int i = offsets.size() - 1; i >= bottom(); i--) {
 			if (offsets.get(i).containsKey(id)) {
-				offset = offsets.get(i).get(id) + arp(id);
+				offset = offsets.get(i).get(id) + arps.get(i);
 				break;
 			}
 		}
@@ -205,18 +213,49 @@ public class SymbolTable {
 	}
 
 	public Integer arp(String id) {
-		int depth = 0;
-		while (true) {
+		int depth = types.size() - 1;
+		while (depth >= bottom()) {
 			if (types.elementAt(depth).keySet().contains(id)) {
 				break;
 			}
-			depth++;
+			depth--;
 		}
 		return arps.elementAt(depth);
 	}
 
+	/**
+	 * Returns the offsets of all variables declared in the open scopes,
+	 * including the hidden ones.
+	 */
+	public List<Integer> offsets() {
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < offsets.size(); i++) {
+			for (Integer offset : offsets.get(i).values()) {
+				result.add(offset + arps.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether the identifier refers to a global variable, i.e. it is not
+	 * shadowed by a variable in one of the open scopes.
+	 */
 	public boolean isGlobal(String id) {
+		for (int i = bottom(); i < types.size(); i++) {
+			if (types.get(i).containsKey(id)) {
+				return false;
+			}
+		}
 		return globalTypes.keySet().contains(id);
 	}
 
+	/**
+	 * Returns the depth of the outermost scope that can be seen from the
+	 * deepest scope level.
+	 */
+	private int bottom() {
+		return frames.isEmpty() ? 0 : frames.peek();
+	}
+
 }
@@ -4,16 +4,37 @@ package grammar;
 import grammar.exception.ParseException;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.junit.Assert;
 import org.junit.Test;
+import sprockell.Label;
+import sprockell.OpCode;
+import sprockell.Simulator;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class Tests {
 	private final static String BASE_DIR = "src/testfiles/";
 	private final static String EXT = ".pp07";
+	/**
+	 * Clock cycles within which a test program has to stop, and the number
+	 * of orders in which the requests of the cores are served.
+	 */
+	private final static int CYCLES = 1000000;
+	private final static int SEEDS = 3;
 
 	private static ParseTree parse(CharStream chars) throws ParseException {
 		Lexer lexer = new GrammarLexer(chars);
@@ -100,6 +121,424 @@ public class Tests {
 		*/
 	}
 
+	@Test
+	public void testPeephole() {
+		Label loop = new Label(0);
+		Label end = new Label(1);
+		List<Op> program = new ArrayList<>();
+		program.add(new Op(OpCode.Push, "RegA"));
+		program.add(new Op(OpCode.Pop, "RegA"));
+		program.add(new Op(loop, OpCode.Nop));
+		program.add(new Op(OpCode.Const, "1", "RegB"));
+		program.add(new Op(OpCode.Const, "1", "RegB"));
+		program.add(new Op(null, OpCode.Branch, loop, "RegB"));
+		program.add(new Op(null, OpCode.Jump, end));
+		program.add(new Op(end, OpCode.EndProg));
+
+		PeepholeOptimizer peephole = new PeepholeOptimizer();
+		List<Op> result = peephole.optimize(program);
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals(loop, result.get(0).getLabel());
+		Assert.assertEquals(loop, result.get(1).getTarget());
+		Assert.assertEquals(2, peephole.getRemoved(PeepholeOptimizer.Rule.PUSH_POP));
+		Assert.assertEquals(1, peephole.getRemoved(PeepholeOptimizer.Rule.NOP));
+		Assert.assertEquals(1, peephole.getRemoved(PeepholeOptimizer.Rule.CONST));
+		Assert.assertEquals(1, peephole.getRemoved(PeepholeOptimizer.Rule.JUMP_NEXT));
+	}
+
+	@Test
+	public void testPeepholeProgram() {
+		// removing the Nops moves their labels, which the jumps of the loops go to
+		PP07Generator generator = new PP07Generator();
+		runGenerator("labels", generator);
+		Assert.assertTrue(generator.getPeephole().getRemoved(PeepholeOptimizer.Rule.NOP) > 0);
+		assertPrints(70, "labels");
+		assertPrints(70, "labels", () -> {
+			PP07Generator unoptimized = new PP07Generator();
+			unoptimized.setPeephole(new PeepholeOptimizer(EnumSet.noneOf(PeepholeOptimizer.Rule.class)));
+			return unoptimized;
+		});
+	}
+
+	@Test
+	public void testFolding() {
+		// the folded initialisation is a single Const, which has to agree with the division at run time
+		List<Op> program = runGenerator("folding");
+		Assert.assertTrue(program.stream().anyMatch(op -> op.toString().equals("Const 48 RegA")));
+		assertPrints(48, "folding");
+	}
+
+	@Test
+	public void testPower() {
+		// b ^ n squares in a loop, x ^ 5 is a chain of multiplications, b ^ 0 is 1
+		assertPrints(2139, "power");
+	}
+
+	@Test
+	public void testShortCircuit() {
+		// touch counts its calls in result: only the two right operands that decide are evaluated
+		assertPrints(12, "shortcircuit");
+	}
+
+	@Test
+	public void testCompareBranch() {
+		// every digit of the result counts how often one comparison held
+		assertPrints(516133, "compare");
+	}
+
+	@Test
+	public void testDeadCode() {
+		// the assignments of 555, 666 and 777 can never run, so they are not generated
+		List<Op> program = runGenerator("deadcode");
+		Assert.assertFalse(program.stream().anyMatch(op -> op.toString().matches("Const (555|666|777) .*")));
+		assertPrints(8, "deadcode");
+	}
+
+	@Test
+	public void testSharedGlobals() throws ParseException {
+		String program = "global int account = 100;\n"
+				+ "global int requests;\n"
+				+ "global int scratch;\n"
+				+ "void write(int amount) {\n"
+				+ "	global int last = amount;\n"
+				+ "	account = account + last;\n"
+				+ "}\n"
+				+ "void main() {\n"
+				+ "	requests = 2;\n"
+				+ "	run a (write, 10);\n"
+				+ "	run b (write, 20);\n"
+				+ "}\n";
+		SharedGlobals shared = new SharedGlobals();
+		shared.analyse(parse(new ANTLRInputStream(program)));
+		Assert.assertTrue(shared.isShared("account"));
+		Assert.assertTrue(shared.isShared("last"));
+		Assert.assertFalse(shared.isShared("requests"));
+		Assert.assertFalse(shared.isShared("scratch"));
+	}
+
+	@Test
+	public void testLockTable() throws ParseException {
+		String program = "global int balance;\n"
+				+ "bool busy() {\n"
+				+ "	return locked m;\n"
+				+ "}\n"
+				+ "void main() {\n"
+				+ "	lock l;\n"
+				+ "	unlock l;\n"
+				+ "	wlock m;\n"
+				+ "	balance = 1;\n"
+				+ "	wunlock m;\n"
+				+ "}\n";
+		LockTable locks = new LockTable(false);
+		locks.analyse(parse(new ANTLRInputStream(program)), 4);
+		Assert.assertEquals(4, locks.getHeld("m"));
+		Assert.assertEquals(6, locks.getReaders("m"));
+		Assert.assertEquals(7, locks.getHeld("l"));
+		Assert.assertEquals(8, locks.getEnd());
+	}
+
+	@Test
+	public void testParforTable() throws ParseException {
+		String program = "void main() {\n"
+				+ "	int n = 10;\n"
+				+ "	int s = 0;\n"
+				+ "	parfor (i = 0; i < n) reduce sum(s) {\n"
+				+ "		s = s + (i * n);\n"
+				+ "	}\n"
+				+ "}\n";
+		ParforTable parfors = new ParforTable();
+		parfors.analyse(parse(new ANTLRInputStream(program)), 8);
+		GrammarParser.ParforStatContext loop = parfors.getLoops().get(0);
+		Assert.assertEquals(8, parfors.getLock(loop));
+		Assert.assertEquals(18, parfors.getPartial(loop, 0));
+		Assert.assertEquals(1, parfors.getCaptures(loop).size());
+		Assert.assertEquals(19, parfors.getCaptured(loop, 0));
+		Assert.assertEquals(20, parfors.getEnd());
+	}
+
+	@Test
+	public void testAtomicTable() throws ParseException {
+		String program = "global int a;\n"
+				+ "global int b;\n"
+				+ "global int c;\n"
+				+ "void bump() {\n"
+				+ "	b = b + 1;\n"
+				+ "}\n"
+				+ "void work() {\n"
+				+ "	atomic {\n"
+				+ "		a = a + 1;\n"
+				+ "		c = c + 1;\n"
+				+ "	}\n"
+				+ "	atomic {\n"
+				+ "		bump();\n"
+				+ "		c = c + 1;\n"
+				+ "	}\n"
+				+ "}\n"
+				+ "void main() {\n"
+				+ "	run x (work);\n"
+				+ "	run y (work);\n"
+				+ "}\n";
+		ParseTree tree = parse(new ANTLRInputStream(program));
+		SharedGlobals shared = new SharedGlobals();
+		shared.analyse(tree);
+		CallGraph callGraph = new CallGraph();
+		callGraph.analyse(tree);
+		AtomicTable atomics = new AtomicTable(shared, callGraph);
+		atomics.analyse(tree, 12);
+		List<GrammarParser.AtomicStatContext> blocks = new ArrayList<>();
+		new ParseTreeWalker().walk(new GrammarBaseListener() {
+			@Override
+			public void enterAtomicStat(GrammarParser.AtomicStatContext ctx) {
+				blocks.add(ctx);
+			}
+		}, tree);
+		Assert.assertEquals(Arrays.asList(12, 13), atomics.getLocks(blocks.get(0)));
+		Assert.assertEquals(Arrays.asList(13, 14), atomics.getLocks(blocks.get(1)));
+		Assert.assertEquals(15, atomics.getEnd());
+	}
+
+	@Test
+	public void testLabels() {
+		// forward and backward jumps of nested loops and an if-else
+		assertPrints(70, "labels");
+	}
+
+	@Test
+	public void testRegisters() {
+		// a full expression tree six deep needs more registers than there are, so some are spilled
+		List<Op> program = runGenerator("registers");
+		Assert.assertTrue(program.stream().anyMatch(op -> op.getOpCode() == OpCode.Push));
+		assertPrints(48, "registers");
+	}
+
+	@Test
+	public void testPolling() {
+		// wait spins until main sets flag, which it only sees if it reads flag on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("poll", generator);
+		Assert.assertTrue(accessesInLoop(program, global(generator, "flag")));
+		assertPrints(1, "poll");
+	}
+
+	@Test
+	public void testDataMemory() {
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("poll", generator);
+		int stack = generator.getDataMemSize() - generator.getStackSize();
+		for (Op op : program) {
+			if (op.getOpCode() == OpCode.Load || op.getOpCode() == OpCode.Store) {
+				String address = op.getOperands()[op.getOpCode() == OpCode.Load ? 0 : 1];
+				Assert.assertTrue(address.startsWith("(Addr "));
+				int word = Integer.parseInt(address.substring(6, address.length() - 1));
+				Assert.assertTrue(word >= 0 && word < stack);
+			}
+		}
+	}
+
+	@Test
+	public void testThreadEscape() {
+		// only main uses mine, so it stays in local memory, next to the variables and the stack of depth
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("escape", generator);
+		Assert.assertFalse(program.stream().anyMatch(op -> accesses(op, global(generator, "mine"))));
+		Assert.assertTrue(program.stream().anyMatch(op -> accesses(op, global(generator, "ours"))));
+		assertPrints(62, "escape");
+	}
+
+	@Test
+	public void testRedundantSharedAccesses() {
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("redundant", generator);
+		Assert.assertTrue(accessesInLoop(program, global(generator, "count")));
+		Assert.assertTrue(inCriticalSection(program, lock(generator, "l"), global(generator, "count")));
+		// two threads add 10 + (0 + 1 + ... + 9) to count each
+		assertPrints(110, "redundant");
+	}
+
+	@Test
+	public void testReadSchedule() {
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("schedule", generator);
+		Assert.assertTrue(accessesInLoop(program, global(generator, "flag")));
+		Assert.assertTrue(inCriticalSection(program, lock(generator, "l"), global(generator, "total")));
+		assertPrints(3, "schedule");
+	}
+
+	@Test
+	public void testCalls() {
+		// seven arguments, two of them on the stack, a recursion that is no tail call and nested calls
+		assertPrints(395, "callconv");
+		assertPrints(395, "callconv", () -> {
+			PP07Generator generator = new PP07Generator();
+			generator.setInlineBudget(0);
+			return generator;
+		});
+	}
+
+	@Test
+	public void testInlining() {
+		// ready is inlined, so the loop calls nothing, but still reads flag on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("inline", generator);
+		Assert.assertTrue(loops(program, global(generator, "flag")).stream()
+				.anyMatch(loop -> loop.stream().noneMatch(op -> op.getOpCode() == OpCode.Push)));
+		assertPrints(1, "inline");
+	}
+
+	@Test
+	public void testTailCall() {
+		// the recursion is a loop that keeps no return addresses, but still reads flag on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("tailcall", generator);
+		Assert.assertTrue(loops(program, global(generator, "flag")).stream()
+				.anyMatch(loop -> loop.stream().noneMatch(op -> op.getOpCode() == OpCode.Push)));
+		assertPrints(1, "tailcall");
+		// 3000 calls deep, more than the stack holds if every call kept its return address
+		assertPrints(4501500, "tailsum");
+	}
+
+	@Test
+	public void testRunQueue() {
+		// idle cores look at the head and tail of the queue and whether main is done on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("join", generator);
+		RunQueue queue = generator.getRunQueue();
+		Assert.assertTrue(accessesInLoop(program, address(queue.getHead()), address(queue.getTail()),
+				address(queue.getMainDone())));
+		// six threads on four cores, so some of them wait in the queue
+		assertPrints(91, "runs");
+	}
+
+	@Test
+	public void testJoin() {
+		// join polls the completion flag of its run on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("join", generator);
+		Assert.assertTrue(accessesInLoop(program, address(generator.getRunQueue().getDone("a"))));
+		Assert.assertTrue(accessesInLoop(program, address(generator.getRunQueue().getDone("b"))));
+		assertPrints(25, "join");
+	}
+
+	@Test
+	public void testLocks() {
+		// three threads count to 20 each under lock l, with test-and-set and with ticket locks
+		for (boolean ticketLocks : new boolean[]{false, true}) {
+			assertPrints(60, "locks", () -> {
+				PP07Generator generator = new PP07Generator();
+				generator.setTicketLocks(ticketLocks);
+				generator.setCoarseningBudget(0);
+				return generator;
+			});
+		}
+	}
+
+	@Test
+	public void testLockElision() {
+		// lock s is shared by the threads and main, lock p is only used by main
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("elide", generator);
+		Assert.assertTrue(inCriticalSection(program, lock(generator, "s"), global(generator, "total")));
+		Assert.assertFalse(program.stream().anyMatch(op -> accesses(op, lock(generator, "p"))));
+		assertPrints(3, "elide");
+	}
+
+	@Test
+	public void testLockCoarsening() {
+		// the loop of poll depends on flag, so it keeps taking lock l on every pass
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("coarsen", generator);
+		Assert.assertTrue(accessesInLoop(program, global(generator, "flag"), lock(generator, "l")));
+		Assert.assertTrue(inCriticalSection(program, lock(generator, "l"), global(generator, "count")));
+		assertPrints(1, "coarsen");
+	}
+
+	@Test
+	public void testCoarseningEndlessLoop() {
+		// spin never ends, so if it took lock l around its loop, main would wait for l forever
+		for (int budget : new int[]{PP07Generator.DEFAULT_COARSENING_BUDGET, 0}) {
+			PP07Generator generator = new PP07Generator();
+			generator.setCoarseningBudget(budget);
+			Simulator simulator = simulate("spin", generator, 0);
+			Assert.assertFalse(simulator.run(CYCLES / 4));
+			Assert.assertEquals(7, simulator.getShared(generator.getGlobalAddress("seen")));
+		}
+	}
+
+	@Test
+	public void testReaderWriterLocks() {
+		// two writers keep a and b equal under the write lock, a reader counts the times they differ
+		assertPrints(40, "rwlock");
+	}
+
+	@Test
+	public void testBarrier() {
+		// waiting threads poll the sense of phase, arrivals count under its guard
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("barrier", generator);
+		LockTable locks = generator.getLockTable();
+		Assert.assertTrue(accessesInLoop(program, address(locks.getSense("phase"))));
+		Assert.assertTrue(inCriticalSection(program, address(locks.getGuard("phase")),
+				address(locks.getArrived("phase"))));
+		// each thread sees what the other one wrote before the barrier
+		assertPrints(2, "barrier");
+	}
+
+	@Test
+	public void testChannel() {
+		// a full channel makes send poll the head, an empty one makes receive poll the tail
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("channel", generator);
+		ChannelTable channels = generator.getChannelTable();
+		Assert.assertTrue(accessesInLoop(program, address(channels.getHead("values"))));
+		Assert.assertTrue(accessesInLoop(program, address(channels.getTail("values"))));
+		// one sender and one receiver, so neither guard is taken
+		for (Op op : program) {
+			Assert.assertFalse(accesses(op, address(channels.getSendGuard("values")))
+					|| accesses(op, address(channels.getReceiveGuard("values"))));
+		}
+		assertPrints(190, "channel");
+	}
+
+	@Test
+	public void testChannelSenders() {
+		// two senders have to take the guard of the senders
+		PP07Generator generator = new PP07Generator();
+		List<Op> program = runGenerator("channels", generator);
+		String guard = address(generator.getChannelTable().getSendGuard("values"));
+		Assert.assertTrue(program.stream().anyMatch(op -> op.getOpCode() == OpCode.TestAndSet && accesses(op, guard)));
+		assertPrints(90, "channels");
+	}
+
+	@Test
+	public void testChannelChecker() throws ParseException {
+		// a valid channel program is checked without any output
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			System.setOut(new PrintStream(output));
+			System.setErr(new PrintStream(output));
+			runChecker("channel");
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+		Assert.assertEquals("", output.toString());
+	}
+
+	@Test
+	public void testParfor() {
+		// the partial sums and maxima of the cores are combined
+		assertPrints(96, "parfor");
+		assertPrints(2646700, "../sample/squares");
+	}
+
+	@Test
+	public void testAtomic() {
+		// no update of an atomic block, or of a function it calls, is lost
+		assertPrints(90, "atomic");
+	}
+
 	private void runChecker(String file) throws ParseException {
 		ParseTree tree = null;
 		try {
@@ -110,13 +549,204 @@ public class Tests {
 		new PP07Checker().check(tree);
 	}
 
-	private void runGenerator(String file) {
+	private List<Op> runGenerator(String file) {
+		return runGenerator(file, new PP07Generator());
+	}
+
+	private List<Op> runGenerator(String file, PP07Generator generator) {
 		try {
 			ParseTree tree = parse(new ANTLRInputStream(new FileReader(new File(BASE_DIR + file + EXT))));
-			runChecker(file);
-			new PP07Generator().generate(tree);
+			Result result = new PP07Checker().check(tree);
+			generator.generate(tree, result);
 		} catch (ParseException | IOException e) {
 			e.printStackTrace();
 		}
+		return generator.getProgram();
+	}
+
+	/**
+	 * Compiles the given test file and loads it on a simulator with the
+	 * cores and local memory of its SystemConfig.
+	 */
+	private Simulator simulate(String file, PP07Generator generator, long seed) {
+		List<String> program = new ArrayList<>();
+		for (Op op : runGenerator(file, generator)) {
+			program.add(op.toString());
+		}
+		return new Simulator(program, generator.getCoreCount(), generator.getDataMemSize(), seed);
+	}
+
+	/**
+	 * Runs the given test file with different orders in which the requests
+	 * of the cores are served, and checks that it stops and prints the
+	 * given value, the first global, every time.
+	 */
+	private void assertPrints(int expected, String file) {
+		assertPrints(expected, file, PP07Generator::new);
+	}
+
+	/**
+	 * Like {@link #assertPrints(int, String)}, with generators from the
+	 * given supplier, e.g. with an optimization turned off.
+	 */
+	private void assertPrints(int expected, String file, Supplier<PP07Generator> generators) {
+		for (long seed = 0; seed < SEEDS; seed++) {
+			Simulator simulator = simulate(file, generators.get(), seed);
+			Assert.assertTrue(simulator.run(CYCLES));
+			Assert.assertEquals(Arrays.asList(expected), simulator.getOutput());
+		}
+	}
+
+	/**
+	 * Returns the address operand of the given global variable.
+	 */
+	private static String global(PP07Generator generator, String id) {
+		return address(generator.getGlobalAddress(id));
+	}
+
+	/**
+	 * Returns the address operand of the word a test-and-set lock is taken
+	 * with.
+	 */
+	private static String lock(PP07Generator generator, String id) {
+		return address(generator.getLockTable().getHeld(id));
+	}
+
+	private static String address(int address) {
+		return "(Addr " + address + ")";
+	}
+
+	/**
+	 * Whether the given program has a loop that reads, writes or tests
+	 * each of the given shared addresses on every pass, i.e. a jump or
+	 * branch back with all of them between its target and itself.
+	 */
+	private static boolean accessesInLoop(List<Op> program, String... addresses) {
+		return !loops(program, addresses).isEmpty();
+	}
+
+	/**
+	 * Returns the instructions from the target of every jump or branch back
+	 * up to the jump or branch itself that access all given addresses.
+	 */
+	private static List<List<Op>> loops(List<Op> program, String... addresses) {
+		List<List<Op>> loops = new ArrayList<>();
+		for (int i = 0; i < program.size(); i++) {
+			int target = target(program.get(i));
+			if (target >= 0 && target <= i && accessesAll(program.subList(target, i + 1), addresses)) {
+				loops.add(program.subList(target, i + 1));
+			}
+		}
+		return loops;
+	}
+
+	/**
+	 * Whether every access of the given shared address comes after a
+	 * TestAndSet of the given lock and before the Write releasing it on
+	 * every path through the program, with no release or other TestAndSet
+	 * of the lock in between. The declarations before the first TestAndSet
+	 * are not checked, but the lock has to be taken somewhere.
+	 */
+	private static boolean inCriticalSection(List<Op> program, String lock, String address) {
+		boolean locked = false;
+		for (int i = 0; i < program.size(); i++) {
+			locked |= program.get(i).getOpCode() == OpCode.TestAndSet && accesses(program.get(i), lock);
+			if (locked && accesses(program.get(i), address)
+					&& !(guarded(program, i, lock, false) && guarded(program, i, lock, true))) {
+				return false;
+			}
+		}
+		return locked;
+	}
+
+	/**
+	 * Whether every path from the given instruction, backwards or forwards,
+	 * meets a TestAndSet or a release of the given lock respectively before
+	 * the other one, or before the path runs out.
+	 */
+	private static boolean guarded(List<Op> program, int index, String lock, boolean forward) {
+		OpCode end = forward ? OpCode.Write : OpCode.TestAndSet;
+		OpCode other = forward ? OpCode.TestAndSet : OpCode.Write;
+		Set<Integer> visited = new HashSet<>();
+		Deque<Integer> todo = new ArrayDeque<>();
+		todo.push(index);
+		while (!todo.isEmpty()) {
+			List<Integer> next = forward ? successors(program, todo.pop()) : predecessors(program, todo.pop());
+			if (next.isEmpty()) {
+				return false;
+			}
+			for (int i : next) {
+				Op op = program.get(i);
+				if (op.getOpCode() == other && accesses(op, lock)) {
+					return false;
+				}
+				if (!(op.getOpCode() == end && accesses(op, lock)) && visited.add(i)) {
+					todo.push(i);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the instructions that may run right before the given one: the
+	 * one above it, unless that is a jump, and every jump or branch to it.
+	 */
+	private static List<Integer> predecessors(List<Op> program, int index) {
+		List<Integer> result = new ArrayList<>();
+		if (index > 0 && program.get(index - 1).getOpCode() != OpCode.Jump) {
+			result.add(index - 1);
+		}
+		for (int i = 0; i < program.size(); i++) {
+			if (target(program.get(i)) == index) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the instructions that may run right after the given one: the
+	 * one below it, unless it is a jump, and the target of a jump or branch.
+	 * Returns and other indirect jumps have none.
+	 */
+	private static List<Integer> successors(List<Op> program, int index) {
+		List<Integer> result = new ArrayList<>();
+		if (index + 1 < program.size() && program.get(index).getOpCode() != OpCode.Jump) {
+			result.add(index + 1);
+		}
+		if (target(program.get(index)) >= 0) {
+			result.add(target(program.get(index)));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the line a jump or branch goes to, or -1 for other instructions
+	 * and indirect jumps.
+	 */
+	private static int target(Op op) {
+		if ((op.getOpCode() != OpCode.Jump && op.getOpCode() != OpCode.Branch) || op.getTarget() == null) {
+			return -1;
+		}
+		return Integer.parseInt(op.getTarget().getLine());
+	}
+
+	private static boolean accesses(Op op, String address) {
+		return (op.getOpCode() == OpCode.Read || op.getOpCode() == OpCode.Write
+				|| op.getOpCode() == OpCode.TestAndSet) && Arrays.asList(op.getOperands()).contains(address);
+	}
+
+	private static boolean accessesAll(List<Op> ops, String... addresses) {
+		for (String address : addresses) {
+			boolean found = false;
+			for (Op op : ops) {
+				found |= accesses(op, address);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
 	}
 }
\ No newline at end of file
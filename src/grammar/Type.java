@@ -13,6 +13,8 @@ public enum Type {
 	/** Char base type. */
 	CHAR,
 	/** Array compound type. */
-	ARRAY;
+	ARRAY,
+	/** Channel compound type, of integers. */
+	CHAN;
 }
 
@@ -14,6 +14,11 @@ public class TypeSize {
 	private static final int BOOL = 1;
 	private static final int VOID = 0;
 	private static final int CHAR = 1;
+	/**
+	 * A channel takes the word of a global variable, like an int; its
+	 * indices and buffer are in shared memory, see ChannelTable.
+	 */
+	private static final int CHAN = 4;
 	private static final List<Type> baseTypes = Arrays.asList(Type.BOOL, Type.CHAR, Type.INT);
 
 	private static int getEnum(int length) {
@@ -33,6 +38,8 @@ public class TypeSize {
 				return BOOL;
 			case CHAR:
 				return CHAR;
+			case CHAN:
+				return CHAN;
 			case VOID:
 				throw new TypeException("Cannot add 'void' as a variable");
 			case ENUM:
@@ -52,6 +59,8 @@ public class TypeSize {
 				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
 			case CHAR:
 				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
+			case CHAN:
+				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
 			case VOID:
 				throw new TypeException("Cannot add 'void' as a variable");
 			case ENUM:
@@ -71,6 +80,8 @@ public class TypeSize {
 				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
 			case CHAR:
 				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
+			case CHAN:
+				throw new TypeException("Type not supported: " + type.toString() + ". Use getSize(Type type) instead.");
 			case VOID:
 				throw new TypeException("Cannot add 'void' as a variable");
 			case ENUM:
@@ -19,8 +19,11 @@ public class Value {
 		return value;
 	}
 
+	/**
+	 * Returns the value as a Haskell literal, negative values between parentheses.
+	 */
 	@Override
 	public String toString() {
-		return value.toString();
+		return value < 0 ? "(" + value + ")" : value.toString();
 	}
 }
\ No newline at end of file
@@ -3,12 +3,11 @@ package sprockell;
 import grammar.exception.CompileException;
 
 public class Label {
+	int id;
 	Integer lineNumber;
-	String name;
 
-	public Label(String name, int line) {
-		this.name = name;
-		this.lineNumber = line;
+	public Label(int id) {
+		this.id = id;
 	}
 
 	public void addLineNum(int lineNumber) {
@@ -23,6 +22,10 @@ public class Label {
 		}
 	}
 
+	public int getID() {
+		return id;
+	}
+
 	public String getLine() {
 		return lineNumber.toString();
 	}
@@ -0,0 +1,415 @@
+package sprockell;
+
+import sprockell.Register.Indexes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs SPRiL programs the way Sprockell/System.hs does, so that programs
+ * can be run without the Haskell simulator. Every core executes one
+ * instruction per clock cycle. Its shared memory requests wait in a queue
+ * per core, of which the shared memory serves the oldest request of a
+ * random core every multiplier-th cycle; the reply reaches that core
+ * bufferDelay cycles later. Writes to stdio are collected as the output.
+ * @author tim, martijn
+ *
+ */
+public class Simulator {
+
+	/**
+	 * Shared memory address of stdio.
+	 */
+	public static final int STD_IO = 0x1000000;
+
+	/**
+	 * Reply latency parameters of the default Sprockell SystemConfig.
+	 */
+	private static final int BUFFER_DELAY = 4;
+	private static final int MULTIPLIER = 2;
+
+	private static final Pattern TOKEN = Pattern.compile("\\([^()]*\\)|\\S+");
+	private static final Pattern OPERAND = Pattern.compile("\\((\\w+)\\s+(\\S+)\\s*\\)");
+
+	private final List<Instruction> program = new ArrayList<>();
+	private final int cores;
+	private final Random random;
+
+	private final int[][] registers;
+	private final int[][] memory;
+	private final boolean[] halted;
+	/**
+	 * Requests of every core waiting for the shared memory, and the replies
+	 * on their way to it, null in the cycles in which none arrives.
+	 */
+	private final List<Deque<Request>> requests = new ArrayList<>();
+	private final List<Deque<Integer>> replies = new ArrayList<>();
+	private final Map<Integer, Integer> shared = new HashMap<>();
+	private final List<Integer> output = new ArrayList<>();
+	private int cycles = 0;
+
+	/**
+	 * Loads the given program on the given number of cores.
+	 * @param program SPRiL instructions, e.g. "Const 1 RegA"
+	 * @param cores number of cores, coreCount of the SystemConfig
+	 * @param dataMemSize local memory size, dataMemSize of the SystemConfig
+	 * @param seed seed of the order in which requests of the cores are served
+	 */
+	public Simulator(List<String> program, int cores, int dataMemSize, long seed) {
+		for (String instruction : program) {
+			this.program.add(new Instruction(instruction));
+		}
+		this.cores = cores;
+		this.random = new Random(seed);
+		this.registers = new int[cores][Indexes.values().length];
+		this.memory = new int[cores][dataMemSize];
+		this.halted = new boolean[cores];
+		for (int core = 0; core < cores; core++) {
+			registers[core][Indexes.SP.ordinal()] = dataMemSize;
+			registers[core][Indexes.SPID.ordinal()] = core;
+			requests.add(new ArrayDeque<>());
+			replies.add(new LinkedList<>(Arrays.asList(new Integer[BUFFER_DELAY])));
+		}
+	}
+
+	/**
+	 * Runs the program until every core has stopped, or for at most the
+	 * given number of clock cycles.
+	 * @return whether every core has stopped
+	 * @throws IllegalStateException if a core jumps out of the program or
+	 * ignores a reply
+	 * @throws ArithmeticException if a core divides by zero
+	 */
+	public boolean run(int maxCycles) {
+		for (int cycle = 0; cycle < maxCycles; cycle++) {
+			if (isFinished()) {
+				return true;
+			}
+			step();
+		}
+		return isFinished();
+	}
+
+	/**
+	 * Returns the values written to stdio, in order.
+	 */
+	public List<Integer> getOutput() {
+		return output;
+	}
+
+	/**
+	 * Returns the value of the given shared memory word.
+	 */
+	public int getShared(int address) {
+		return shared.getOrDefault(address, 0);
+	}
+
+	/**
+	 * Returns the number of clock cycles run so far.
+	 */
+	public int getCycles() {
+		return cycles;
+	}
+
+	private boolean isFinished() {
+		for (int core = 0; core < cores; core++) {
+			if (!halted[core] || !requests.get(core).isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs one clock cycle of every core and of the shared memory.
+	 */
+	private void step() {
+		Request[] sent = new Request[cores];
+		for (int core = 0; core < cores; core++) {
+			sent[core] = execute(core, replies.get(core).peekFirst());
+		}
+		int served = random.nextInt(cores);
+		Integer reply = null;
+		if (cycles % MULTIPLIER == 0 && !requests.get(served).isEmpty()) {
+			reply = serve(requests.get(served).pollFirst());
+		}
+		for (int core = 0; core < cores; core++) {
+			if (sent[core] != null) {
+				requests.get(core).addLast(sent[core]);
+			}
+			replies.get(core).pollFirst();
+			replies.get(core).addLast(core == served ? reply : null);
+		}
+		cycles++;
+	}
+
+	/**
+	 * Executes the current instruction of the given core.
+	 * @param reply the reply that reaches the core in this cycle, or null
+	 * @return the shared memory request of the instruction, or null
+	 */
+	private Request execute(int core, Integer reply) {
+		int[] regs = registers[core];
+		int pc = regs[Indexes.PC.ordinal()];
+		if (pc < 0 || pc >= program.size()) {
+			throw new IllegalStateException("Core " + core + " jumped to " + pc);
+		}
+		Instruction instruction = program.get(pc);
+		if (reply != null && instruction.opCode != OpCode.Receive) {
+			throw new IllegalStateException("Core " + core + " ignored a reply at " + pc);
+		}
+		int next = pc + 1;
+		Request request = null;
+		switch (instruction.opCode) {
+			case Compute:
+				int value = compute(instruction.operator, regs[instruction.left], regs[instruction.right]);
+				if (instruction.register == Indexes.PC.ordinal()) {
+					next = value;
+				} else {
+					regs[instruction.register] = value;
+				}
+				break;
+			case Const:
+				regs[instruction.register] = instruction.value;
+				break;
+			case Branch:
+				if (regs[instruction.register] != 0) {
+					next = instruction.target(regs, pc);
+				}
+				break;
+			case Jump:
+				next = instruction.target(regs, pc);
+				break;
+			case Load:
+				regs[instruction.register] = memory[core][instruction.address(regs)];
+				break;
+			case Store:
+				memory[core][instruction.address(regs)] = regs[instruction.register];
+				break;
+			case Push:
+				regs[Indexes.SP.ordinal()]--;
+				memory[core][regs[Indexes.SP.ordinal()]] = regs[instruction.register];
+				break;
+			case Pop:
+				regs[instruction.register] = memory[core][regs[Indexes.SP.ordinal()]];
+				regs[Indexes.SP.ordinal()]++;
+				break;
+			case Receive:
+				if (reply == null) {
+					next = pc;
+				} else {
+					regs[instruction.register] = reply;
+				}
+				break;
+			case Read:
+			case TestAndSet:
+				request = new Request(instruction.opCode, instruction.address(regs), 0);
+				break;
+			case Write:
+				request = new Request(OpCode.Write, instruction.address(regs), regs[instruction.register]);
+				break;
+			case EndProg:
+				next = pc;
+				break;
+			default:
+				break;
+		}
+		regs[Indexes.PC.ordinal()] = next;
+		regs[Indexes.Zero.ordinal()] = 0;
+		halted[core] = instruction.opCode == OpCode.EndProg || (instruction.opCode == OpCode.Jump && next == pc);
+		return request;
+	}
+
+	/**
+	 * Serves a shared memory request, and returns its reply, if any.
+	 */
+	private Integer serve(Request request) {
+		if (request.address >= STD_IO) {
+			if (request.opCode == OpCode.Write) {
+				output.add(request.value);
+				return null;
+			}
+			return request.opCode == OpCode.Read ? -1 : 0;
+		}
+		switch (request.opCode) {
+			case Read:
+				return getShared(request.address);
+			case Write:
+				shared.put(request.address, request.value);
+				return null;
+			default:
+				int old = getShared(request.address);
+				shared.put(request.address, 1);
+				return (old & 1) == 0 ? 1 : 0;
+		}
+	}
+
+	private static int compute(String operator, int x, int y) {
+		switch (operator) {
+			case "Incr":
+				return x + 1;
+			case "Decr":
+				return x - 1;
+			case "Add":
+				return x + y;
+			case "Sub":
+				return x - y;
+			case "Mul":
+				return x * y;
+			case "Div":
+				return Math.floorDiv(x, y);
+			case "Mod":
+				return Math.floorMod(x, y);
+			case "Equal":
+				return x == y ? 1 : 0;
+			case "NEq":
+				return x != y ? 1 : 0;
+			case "Gt":
+				return x > y ? 1 : 0;
+			case "GtE":
+				return x >= y ? 1 : 0;
+			case "Lt":
+				return x < y ? 1 : 0;
+			case "LtE":
+				return x <= y ? 1 : 0;
+			case "And":
+				return x & y;
+			case "Or":
+				return x | y;
+			case "Xor":
+				return x ^ y;
+			case "LShift":
+				return y >= 32 ? 0 : x << y;
+			case "RShift":
+				return y >= 32 ? x >> 31 : x >> y;
+			default:
+				throw new IllegalArgumentException("Unknown operator " + operator);
+		}
+	}
+
+	/**
+	 * A shared memory request: a Read, Write or TestAndSet of an address.
+	 */
+	private static class Request {
+		private final OpCode opCode;
+		private final int address;
+		private final int value;
+
+		private Request(OpCode opCode, int address, int value) {
+			this.opCode = opCode;
+			this.address = address;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A parsed SPRiL instruction. Registers are stored by their index, an
+	 * address or target by its value, or by the index of the register
+	 * holding it if it is a Deref or Ind operand.
+	 */
+	private static class Instruction {
+		private final OpCode opCode;
+		private String operator;
+		private int left;
+		private int right;
+		private int register;
+		private int value;
+		private String mode;
+
+		private Instruction(String text) {
+			List<String> tokens = new ArrayList<>();
+			Matcher matcher = TOKEN.matcher(text);
+			while (matcher.find()) {
+				tokens.add(matcher.group());
+			}
+			opCode = OpCode.valueOf(tokens.get(0));
+			switch (opCode) {
+				case Compute:
+					operator = tokens.get(1);
+					left = register(tokens.get(2));
+					right = register(tokens.get(3));
+					register = register(tokens.get(4));
+					break;
+				case Const:
+					value = Integer.decode(tokens.get(1).replaceAll("[()\\s]", ""));
+					register = register(tokens.get(2));
+					break;
+				case Branch:
+					register = register(tokens.get(1));
+					operand(tokens.get(2));
+					break;
+				case Load:
+					operand(tokens.get(1));
+					register = register(tokens.get(2));
+					break;
+				case Store:
+				case Write:
+					register = register(tokens.get(1));
+					operand(tokens.get(2));
+					break;
+				case Push:
+				case Pop:
+				case Receive:
+					register = register(tokens.get(1));
+					break;
+				case Jump:
+				case Read:
+				case TestAndSet:
+					operand(tokens.get(1));
+					break;
+				default:
+					break;
+			}
+		}
+
+		/**
+		 * Parses an address, "(Addr n)", "(Deref reg)" or stdio, or a
+		 * target, "(Abs n)", "(Rel n)" or "(Ind reg)".
+		 */
+		private void operand(String operand) {
+			if (operand.equals("stdio")) {
+				mode = "Addr";
+				value = STD_IO;
+				return;
+			}
+			Matcher matcher = OPERAND.matcher(operand);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Unknown operand " + operand);
+			}
+			mode = matcher.group(1);
+			if (mode.equals("Deref") || mode.equals("Ind")) {
+				value = register(matcher.group(2));
+			} else {
+				value = Integer.decode(matcher.group(2));
+			}
+		}
+
+		private int address(int[] regs) {
+			return mode.equals("Deref") ? regs[value] : value;
+		}
+
+		private int target(int[] regs, int pc) {
+			switch (mode) {
+				case "Ind":
+					return regs[value];
+				case "Rel":
+					return pc + value;
+				default:
+					return value;
+			}
+		}
+
+		private static int register(String name) {
+			return Indexes.valueOf(name).ordinal();
+		}
+	}
+}